@@ -0,0 +1,74 @@
+package io.cloudnative.teamcity;
+
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Whole build-finished notification path: listener, payload building and encoding, delivery and POST-ing payload
+ * to each of N local {@link StubReceiver}s. An operation completes once all receivers got build's payload,
+ * so percentiles of sample mode are end-to-end notification latencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@Threads(1)
+public class FanOutBenchmark {
+
+  private static final long TIMEOUT = 30000;
+
+  @Param({"1", "10", "50"})
+  int receiversCount;
+
+  @Param("100")
+  int artifactsCount;
+
+  Plugin             plugin;
+  List<StubReceiver> receivers;
+  SRunningBuild      build;
+  long               sent;
+
+
+  @Setup
+  public void setup() throws Exception {
+    SBuildServer buildServer = Fixtures.buildServer();
+    plugin    = new Plugin(buildServer);
+    receivers = new ArrayList<StubReceiver>(receiversCount);
+
+    List<String> urls = new ArrayList<String>(receiversCount);
+    for (int j = 0; j < receiversCount; j++){
+      StubReceiver receiver = new StubReceiver();
+      receivers.add(receiver);
+      urls.add(receiver.getUrl());
+    }
+    plugin.addWebhooks(urls, "");
+
+    build = Fixtures.build(buildServer, 14, Fixtures.artifactsDirectory(artifactsCount));
+  }
+
+
+  @TearDown
+  public void tearDown(){
+    plugin.close();
+    for (StubReceiver receiver : receivers){
+      receiver.stop();
+    }
+  }
+
+
+  @Benchmark
+  public void fanOut() throws Exception {
+    sent++;
+    plugin.listener.buildFinished(build);
+    for (StubReceiver receiver : receivers){
+      receiver.await(sent, TIMEOUT);
+    }
+  }
+}
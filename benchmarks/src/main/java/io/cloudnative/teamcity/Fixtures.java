@@ -0,0 +1,115 @@
+package io.cloudnative.teamcity;
+
+import static org.mockito.Mockito.*;
+import com.google.common.io.Files;
+import jetbrains.buildServer.StatusDescriptor;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifacts;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifactsViewMode;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+
+/**
+ * Mocked TeamCity objects shared by benchmarks, so that they run offline.
+ * Mocks are stub-only: they don't record invocations, which would otherwise dominate allocations measured.
+ */
+final class Fixtures {
+
+  static final String ROOT_URL      = "http://127.0.0.1:8111";
+  static final String PROJECT_ID    = "Echo";
+  static final String BUILD_TYPE_ID = "Echo_Build";
+
+  private Fixtures() {}
+
+
+  /**
+   * Server paths with config and plugin data directories under a new temporary directory.
+   */
+  static ServerPaths serverPaths(){
+    File directory = Files.createTempDir();
+    File config    = new File(directory, "config");
+    File data      = new File(directory, "plugins");
+    if (! (config.mkdirs() && data.mkdirs())) {
+      throw new RuntimeException("Failed to create directories in '" + directory + "'");
+    }
+
+    ServerPaths serverPaths = mock(ServerPaths.class, withSettings().stubOnly());
+    when(serverPaths.getConfigDir()).thenReturn(config.getPath());
+    when(serverPaths.getPluginDataDirectory()).thenReturn(data);
+    when(serverPaths.getDataDirectory()).thenReturn(directory.getPath());
+    return serverPaths;
+  }
+
+
+  static SBuildServer buildServer(){
+    SBuildServer buildServer = mock(SBuildServer.class, withSettings().stubOnly());
+    when(buildServer.getRootUrl()).thenReturn(ROOT_URL);
+    return buildServer;
+  }
+
+
+  /**
+   * Project without a parent project.
+   */
+  static ProjectManager projectManager(){
+    SProject project = mock(SProject.class, withSettings().stubOnly());
+    when(project.getExternalId()).thenReturn(PROJECT_ID);
+    when(project.getProjects()).thenReturn(Collections.<SProject>emptyList());
+
+    ProjectManager projectManager = mock(ProjectManager.class, withSettings().stubOnly());
+    when(projectManager.findProjectByExternalId(PROJECT_ID)).thenReturn(project);
+    return projectManager;
+  }
+
+
+  /**
+   * Successful finished build of {@link #BUILD_TYPE_ID}, found by the build server specified.
+   */
+  static SRunningBuild build(SBuildServer buildServer, long buildId, File artifactsDirectory){
+    SBuildType buildType = mock(SBuildType.class, withSettings().stubOnly());
+    when(buildType.getExternalId()).thenReturn(BUILD_TYPE_ID);
+    when(buildType.getProjectExternalId()).thenReturn(PROJECT_ID);
+    when(buildType.getFullName()).thenReturn("Echo :: Build");
+
+    StatusDescriptor status = mock(StatusDescriptor.class, withSettings().stubOnly());
+    when(status.isSuccessful()).thenReturn(true);
+    when(status.getText()).thenReturn("Tests passed: 1337");
+
+    BuildArtifacts artifacts = mock(BuildArtifacts.class, withSettings().stubOnly());
+    when(artifacts.isAvailable()).thenReturn(true);
+
+    SRunningBuild build = mock(SRunningBuild.class, withSettings().stubOnly());
+    when(build.getBuildId()).thenReturn(buildId);
+    when(build.getBuildNumber()).thenReturn(String.valueOf(buildId));
+    when(build.getFullName()).thenReturn("Echo :: Build");
+    when(build.getBuildType()).thenReturn(buildType);
+    when(build.getBuildTypeExternalId()).thenReturn(BUILD_TYPE_ID);
+    when(build.getProjectExternalId()).thenReturn(PROJECT_ID);
+    when(build.getStatusDescriptor()).thenReturn(status);
+    when(build.getArtifacts(BuildArtifactsViewMode.VIEW_DEFAULT)).thenReturn(artifacts);
+    when(build.getArtifactsDirectory()).thenReturn(artifactsDirectory);
+    when(build.isFinished()).thenReturn(true);
+
+    when(buildServer.findBuildInstanceById(buildId)).thenReturn(build);
+    return build;
+  }
+
+
+  /**
+   * Temporary directory with the number of (empty) artifacts specified.
+   */
+  static File artifactsDirectory(int artifactsCount){
+    File directory = Files.createTempDir();
+    try {
+      for (int j = 0; j < artifactsCount; j++){
+        Files.touch(new File(directory, "echo-service-0.0." + j + "-SNAPSHOT.jar"));
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return directory;
+  }
+}
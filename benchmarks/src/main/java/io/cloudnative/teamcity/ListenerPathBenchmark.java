@@ -0,0 +1,108 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.Gson;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Steps of build-finished notification path, each measured on its own: settings and index lookups,
+ * payload building and its JSON encoding. Artifact URLs are measured by {@link WebhooksUrlsBenchmark},
+ * the whole path by {@link FanOutBenchmark}.
+ *
+ * Artifact names are cached per build after the first payload, as they are for events of the same build.
+ * Encoding is measured both ways, {@link #encodePayload()} and {@link #encodePayloadLegacy(Blackhole)},
+ * run them with "-prof gc" to compare bytes allocated per build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ListenerPathBenchmark {
+
+  @Param("20")
+  int webhooksCount;
+
+  @Param("100")
+  int artifactsCount;
+
+  Plugin         plugin;
+  SRunningBuild  build;
+  WebhookPayload payload;
+
+
+  @Setup
+  public void setup(){
+    SBuildServer buildServer = Fixtures.buildServer();
+    plugin = new Plugin(buildServer);
+
+    List<String> urls = new ArrayList<String>(webhooksCount);
+    for (int j = 0; j < webhooksCount; j++){
+      urls.add("http://receiver-" + j + ".example.com/webhook");
+    }
+    plugin.addWebhooks(urls, "");
+
+    build   = Fixtures.build(buildServer, 14, Fixtures.artifactsDirectory(artifactsCount));
+    payload = plugin.payloadBuilder.buildPayload(build, WebhookEvent.BUILD_FINISHED);
+  }
+
+
+  @TearDown
+  public void tearDown(){
+    plugin.close();
+  }
+
+
+  @Benchmark
+  public Set<String> getUrls(){
+    return plugin.settings.getUrls(Fixtures.PROJECT_ID);
+  }
+
+
+  /**
+   * Lookup listener does for each event: webhooks of the project and its parents.
+   */
+  @Benchmark
+  public List<Webhook> getWebhooks(){
+    return plugin.index.getWebhooks(Fixtures.PROJECT_ID, WebhookEvent.BUILD_FINISHED);
+  }
+
+
+  @Benchmark
+  public WebhookPayload buildPayload(){
+    return plugin.payloadBuilder.buildPayload(build, WebhookEvent.BUILD_FINISHED);
+  }
+
+
+  /**
+   * Encoding done once per build: UTF-8 bytes written straight from the payload, shared by all webhooks.
+   */
+  @Benchmark
+  public EncodedPayload encodePayload(){
+    return EncodedPayload.encode(payload);
+  }
+
+
+  /**
+   * Encoding as it was before payloads were encoded once per build: a new Gson, JSON String parsed back
+   * to a Map as a sanity check, and String converted to bytes by each webhook's POST.
+   */
+  @Benchmark
+  public void encodePayloadLegacy(Blackhole blackhole){
+    Gson   gson = new Gson();
+    String json = gson.toJson(payload);
+    blackhole.consume(gson.fromJson(json, Map.class));
+    for (int j = 0; j < webhooksCount; j++){
+      blackhole.consume(json.getBytes(EncodedPayload.UTF8));
+    }
+  }
+}
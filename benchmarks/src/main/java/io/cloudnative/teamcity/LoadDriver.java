@@ -0,0 +1,271 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.JsonObject;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Load test of the plugin: drives {@link WebhooksListener} with a stream of build events, as TeamCity's event
+ * dispatching thread does, and POSTs payloads to local {@link StubReceiver}s, a share of which are faulty:
+ * slow, refusing connections, failing with "500" or not responding before POST timeout.
+ *
+ * Configured with system properties below, plugin's internal properties ("teamcity.webhooks.*") apply as well:
+ *
+ *   java -Dload.builds=500 -Dload.duration=60 -Dload.receivers=20 -Dload.faulty=0.1 \
+ *        -cp target/benchmarks.jar io.cloudnative.teamcity.LoadDriver
+ *
+ * Reports end-to-end notification latency (build finished until receiver got its payload) by receiver's fault,
+ * throughput, time listener held event dispatching thread for, plugin's delivery counters, heap and thread growth.
+ */
+public final class LoadDriver {
+
+  /**
+   * Fault injected into a receiver, faulty receivers get them in turn.
+   */
+  enum Fault { NONE, SLOW, REFUSING, FAILING, HANGING }
+
+  private static final String PREFIX = "load.";
+
+  // Builds finishing within the duration, evenly spread
+  private final int    builds         = Integer.getInteger(PREFIX + "builds", 500);
+  private final int    duration       = Integer.getInteger(PREFIX + "duration", 60);
+  private final int    receiversCount = Integer.getInteger(PREFIX + "receivers", 20);
+  // Share of faulty receivers
+  private final double faulty         = Double.parseDouble(System.getProperty(PREFIX + "faulty", "0.1"));
+  // Response latency of healthy receivers and of slow ones, ms
+  private final long   latency        = Long.getLong(PREFIX + "latency", 5);
+  private final long   slowLatency    = Long.getLong(PREFIX + "slowLatency", 2000);
+  // Share of requests failing and hanging receivers fail or don't respond to
+  private final double errorRate      = Double.parseDouble(System.getProperty(PREFIX + "errorRate", "1"));
+  private final double timeoutRate    = Double.parseDouble(System.getProperty(PREFIX + "timeoutRate", "1"));
+  private final int    artifactsCount = Integer.getInteger(PREFIX + "artifacts", 100);
+  // Seconds to wait for payloads after the last build finished
+  private final int    drainTimeout   = Integer.getInteger(PREFIX + "drainTimeout", 60);
+
+  private final ThreadMXBean              threads      = ManagementFactory.getThreadMXBean();
+  // Build ID => when its "buildFinished" event was dispatched, nanoseconds
+  private final ConcurrentMap<Long, Long> finishedAt   = new ConcurrentHashMap<Long, Long>();
+  private final Map<Fault, Histogram>     latencies    = new EnumMap<Fault, Histogram>(Fault.class);
+  private final Map<Fault, AtomicLong>    receivedBy   = new EnumMap<Fault, AtomicLong>(Fault.class);
+  private final Map<Fault, Integer>       faults       = new EnumMap<Fault, Integer>(Fault.class);
+  private final Histogram                 dispatch     = new Histogram();
+  private final AtomicLong                lastReceived = new AtomicLong();
+  private final List<StubReceiver>        receivers    = new ArrayList<StubReceiver>();
+  private volatile long                   peakHeap;
+  private volatile int                    peakThreads;
+
+
+  public static void main(String[] args) throws Exception {
+    new LoadDriver().run();
+    System.exit(0);
+  }
+
+
+  private void run() throws Exception {
+    long heapBefore    = usedHeap();
+    int  threadsBefore = threads.getThreadCount();
+
+    SBuildServer buildServer = Fixtures.buildServer();
+    Plugin       plugin      = new Plugin(buildServer);
+    plugin.addWebhooks(startReceivers(), options());
+
+    File                artifactsDirectory = Fixtures.artifactsDirectory(artifactsCount);
+    List<SRunningBuild> finished           = new ArrayList<SRunningBuild>(builds);
+    for (int j = 1; j <= builds; j++){
+      finished.add(Fixtures.build(buildServer, j, artifactsDirectory));
+    }
+
+    Timer sampler = new Timer("Load sampler", true);
+    sampler.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        peakHeap    = Math.max(peakHeap, usedHeap(false));
+        peakThreads = Math.max(peakThreads, threads.getThreadCount());
+      }
+    }, 0, 200);
+
+    System.out.printf("Finishing %s builds in %s s, %s receivers: %s%n", builds, duration, receiversCount, faults);
+    long started  = System.nanoTime();
+    long interval = TimeUnit.SECONDS.toNanos(duration) / Math.max(1, builds);
+    for (int j = 0; j < finished.size(); j++){
+      long next = started + (j * interval);
+      long wait = next - System.nanoTime();
+      if (wait > 0) { TimeUnit.NANOSECONDS.sleep(wait); }
+      dispatch(plugin.listener, finished.get(j));
+    }
+    long dispatched = System.nanoTime();
+
+    awaitDeliveries();
+    long completed = Math.max(lastReceived.get(), dispatched);
+    sampler.cancel();
+
+    report(plugin, started, dispatched, completed);
+
+    plugin.close();
+    for (StubReceiver receiver : receivers){
+      receiver.stop();
+    }
+
+    Thread.sleep(1000);
+    System.out.printf("Heap:      %s MB before, %s MB peak, %s MB after shutdown%n",
+                      mb(heapBefore), mb(peakHeap), mb(usedHeap()));
+    System.out.printf("Threads:   %s before, %s peak, %s after shutdown%n",
+                      threadsBefore, peakThreads, threads.getThreadCount());
+  }
+
+
+  /**
+   * Starts receivers, faulty ones first, returning their URLs.
+   */
+  private List<String> startReceivers() throws Exception {
+    List<String> urls        = new ArrayList<String>(receiversCount);
+    int          faultyCount = (int) Math.round(receiversCount * faulty);
+    Fault[]      injected    = { Fault.SLOW, Fault.REFUSING, Fault.FAILING, Fault.HANGING };
+
+    for (Fault fault : Fault.values()){
+      latencies.put(fault, new Histogram());
+      receivedBy.put(fault, new AtomicLong());
+      faults.put(fault, 0);
+    }
+
+    for (int j = 0; j < receiversCount; j++){
+      final Fault fault = (j < faultyCount ? injected[j % injected.length] : Fault.NONE);
+      faults.put(fault, faults.get(fault) + 1);
+
+      if (fault == Fault.REFUSING) {
+        urls.add(StubReceiver.refusingUrl());
+        continue;
+      }
+
+      StubReceiver receiver = new StubReceiver(fault == Fault.SLOW    ? slowLatency : latency,
+                                               fault == Fault.FAILING ? errorRate   : 0,
+                                               fault == Fault.HANGING ? timeoutRate : 0,
+                                               new StubReceiver.Listener() {
+        @Override
+        public void received(byte[] payload) {
+          payloadReceived(fault, payload);
+        }
+      });
+      receivers.add(receiver);
+      urls.add(receiver.getUrl());
+    }
+    return urls;
+  }
+
+
+  /**
+   * Template putting build ID in front of the default payload, so that receivers know which build they got.
+   */
+  private static String options(){
+    JsonObject options = new JsonObject();
+    options.addProperty("template", "{\"id\": \"${id}\", \"payload\": ${payload}}");
+    return options.toString();
+  }
+
+
+  /**
+   * Sends build's events to the listener, recording how long they held dispatching thread for.
+   */
+  private void dispatch(WebhooksListener listener, SRunningBuild build){
+    long started = System.nanoTime();
+    listener.buildStarted(build);
+    listener.changesLoaded(build);
+    finishedAt.put(build.getBuildId(), System.nanoTime());
+    listener.buildFinished(build);
+    dispatch.record(System.nanoTime() - started);
+  }
+
+
+  private void payloadReceived(Fault fault, byte[] payload){
+    long now = System.nanoTime();
+    // {"id": "14", "payload": ...
+    String head    = new String(payload, 0, Math.min(payload.length, 32), EncodedPayload.UTF8);
+    int    start   = head.indexOf('"', head.indexOf(':')) + 1;
+    Long   buildId = Long.valueOf(head.substring(start, head.indexOf('"', start)));
+
+    Long finished = finishedAt.get(buildId);
+    if (finished != null) { latencies.get(fault).record(now - finished); }
+    receivedBy.get(fault).incrementAndGet();
+    lastReceived.set(now);
+  }
+
+
+  /**
+   * Waits until receivers that can get payloads got all of them or until drain timeout passes.
+   */
+  private void awaitDeliveries() throws InterruptedException {
+    long expected = (long) builds * (faults.get(Fault.NONE) + faults.get(Fault.SLOW));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeout);
+
+    while ((System.nanoTime() < deadline) &&
+           ((receivedBy.get(Fault.NONE).get() + receivedBy.get(Fault.SLOW).get()) < expected)) {
+      Thread.sleep(100);
+    }
+  }
+
+
+  private void report(Plugin plugin, long started, long dispatched, long completed){
+    long received = 0;
+    for (AtomicLong count : receivedBy.values()){
+      received += count.get();
+    }
+    double seconds = (completed - started) / 1e9;
+
+    System.out.printf("Dispatched %s builds in %.1f s, listener held event thread for p50 %s us, p99 %s us, max %s us%n",
+                      builds, (dispatched - started) / 1e9,
+                      micros(dispatch.percentile(0.5)), micros(dispatch.percentile(0.99)), micros(dispatch.getMax()));
+    System.out.printf("Received %s payloads in %.1f s, %.1f payloads/s%n", received, seconds, received / seconds);
+
+    for (Fault fault : Fault.values()){
+      if (faults.get(fault) < 1) { continue; }
+      Histogram latency = latencies.get(fault);
+      System.out.printf("  %-8s %3s receivers: %6s payloads, latency p50 %s ms, p99 %s ms, max %s ms%n",
+                        fault, faults.get(fault), receivedBy.get(fault).get(),
+                        millis(latency.percentile(0.5)), millis(latency.percentile(0.99)), millis(latency.getMax()));
+    }
+
+    WebhooksDelivery delivery = plugin.delivery;
+    System.out.printf("Delivery:  %s delivered, %s failed, %s retried, %s rejected, %s skipped, %s queued, %s retries pending%n",
+                      delivery.getDelivered(), delivery.getFailed(), delivery.getRetried(), delivery.getRejected(),
+                      delivery.getSkipped(), delivery.getQueueDepth(), delivery.getRetriesPending());
+    System.out.printf("Transport: %s requests, %s connections opened%n",
+                      plugin.transport.getRequests(), plugin.transport.getConnectionsOpened());
+    System.out.printf("Breakers:  %s%n", delivery.getBreakerStates());
+  }
+
+
+  private static long usedHeap(){
+    return usedHeap(true);
+  }
+
+
+  private static long usedHeap(boolean collect){
+    if (collect) { System.gc(); }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+
+  private static long mb(long bytes){
+    return bytes / (1024 * 1024);
+  }
+
+
+  private static long micros(long nanos){
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+
+  private static long millis(long nanos){
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+}
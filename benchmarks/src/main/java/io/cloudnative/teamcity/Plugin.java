@@ -0,0 +1,92 @@
+package io.cloudnative.teamcity;
+
+import static org.mockito.Mockito.*;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Plugin's beans wired as "build-server-plugin-webhooks.xml" wires them, on top of mocked TeamCity objects.
+ * Events are sent to {@link #listener} directly rather than through the build server.
+ */
+final class Plugin {
+
+  final ServerPaths            serverPaths;
+  final SBuildServer           buildServer;
+  final ProjectManager         projectManager;
+  final WebhooksSettings       settings;
+  final WebhooksIndex          index;
+  final WebhooksMetrics        metrics;
+  final WebhooksCluster        cluster;
+  final WebhooksJournal        journal;
+  final WebhooksHistory        history;
+  final WebhooksTransport      transport;
+  final WebhooksDelivery       delivery;
+  final WebhooksS3             s3;
+  final WebhooksConfigWatcher  configWatcher;
+  final WebhooksUrls           urls;
+  final WebhooksBatcher        batcher;
+  final WebhooksPayloadBuilder payloadBuilder;
+  final WebhooksListener       listener;
+
+
+  Plugin(SBuildServer buildServer) {
+    this.buildServer = buildServer;
+    serverPaths      = Fixtures.serverPaths();
+    projectManager   = Fixtures.projectManager();
+    settings         = new WebhooksSettings(serverPaths);
+    index            = new WebhooksIndex(settings, buildServer, projectManager);
+    metrics          = new WebhooksMetrics();
+    cluster          = new WebhooksCluster(serverPaths);
+    journal          = new WebhooksJournal(serverPaths, cluster);
+    history          = new WebhooksHistory(serverPaths, cluster, settings);
+    transport        = new WebhooksTransport();
+    delivery         = new WebhooksDelivery(settings, journal, transport, metrics, history);
+    s3               = new WebhooksS3(serverPaths);
+    configWatcher    = new WebhooksConfigWatcher(settings, s3);
+    urls             = new WebhooksUrls(buildServer);
+    batcher          = new WebhooksBatcher(delivery, journal);
+    payloadBuilder   = new WebhooksPayloadBuilder(buildServer, mock(ArtifactsGuard.class, withSettings().stubOnly()),
+                                                  s3, urls, metrics);
+    listener         = new WebhooksListener(settings, index, buildServer, payloadBuilder, delivery, batcher, cluster,
+                                                  metrics);
+    // Init methods, in the order beans are declared
+    index.register();
+    cluster.start();
+    delivery.start();
+    configWatcher.start();
+    listener.register();
+  }
+
+
+  /**
+   * Adds project's webhooks with the options specified, as JSON.
+   */
+  void addWebhooks(List<String> urls, String options){
+    List<WebhooksSettings.Change> changes = new ArrayList<WebhooksSettings.Change>();
+    for (String url : urls){
+      changes.add(WebhooksSettings.Change.add(Fixtures.PROJECT_ID, url, WebhookOptions.parse(options)));
+    }
+    settings.apply(changes);
+  }
+
+
+  /**
+   * Shuts beans down in reverse order, as Spring does.
+   */
+  void close(){
+    payloadBuilder.shutdown();
+    batcher.shutdown();
+    configWatcher.shutdown();
+    s3.close();
+    delivery.shutdown();
+    transport.close();
+    history.close();
+    journal.close();
+    cluster.shutdown();
+  }
+}
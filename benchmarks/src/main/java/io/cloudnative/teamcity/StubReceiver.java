@@ -0,0 +1,188 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Local HTTP receiver of webhooks' payloads on an ephemeral port, responding "200 OK" and counting payloads received.
+ *
+ * Faults can be injected: responses delayed, requests failed with "500" or not responded to
+ * before plugin's POST timeout.
+ */
+final class StubReceiver implements HttpHandler {
+
+  private static final byte[] OK    = "OK".getBytes(EncodedPayload.UTF8);
+  private static final byte[] ERROR = "Injected error".getBytes(EncodedPayload.UTF8);
+
+  static {
+    // Otherwise Nagle's algorithm and delayed ACKs add up to 40 ms to each response
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  /**
+   * Notified of each payload responded to with "200 OK", on receiver's thread.
+   */
+  interface Listener {
+    void received(byte[] payload);
+  }
+
+  private final HttpServer      server;
+  private final ExecutorService executor;
+  private final long            latency;
+  private final double          errorRate;
+  private final double          timeoutRate;
+  private final Listener        listener;
+  private final Random          random = new Random();
+  private long                  received;
+  private long                  failed;
+  private long                  timedOut;
+
+
+  StubReceiver() throws IOException {
+    this(0, 0, 0, null);
+  }
+
+
+  /**
+   * @param latency     milliseconds each response is delayed for
+   * @param errorRate   share of requests responded to with "500 Internal Server Error"
+   * @param timeoutRate share of requests not responded to until plugin's POST timeout passes
+   * @param listener    notified of payloads received, may be null
+   */
+  StubReceiver(long latency, double errorRate, double timeoutRate, Listener listener) throws IOException {
+    this.latency     = latency;
+    this.errorRate   = errorRate;
+    this.timeoutRate = timeoutRate;
+    this.listener    = listener;
+    executor         = Executors.newCachedThreadPool(new ThreadFactoryBuilder().
+                                                     setNameFormat("Stub receiver %d").
+                                                     setDaemon(true).
+                                                     build());
+    server           = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+    server.createContext("/", this);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+
+  /**
+   * URL of a port nothing listens on, POST-ing to it fails with "Connection refused".
+   */
+  static String refusingUrl() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return "http://127.0.0.1:" + socket.getLocalPort() + "/";
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+
+  String getUrl(){
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+
+  synchronized long getReceived(){
+    return received;
+  }
+
+
+  synchronized long getFailed(){
+    return failed;
+  }
+
+
+  synchronized long getTimedOut(){
+    return timedOut;
+  }
+
+
+  /**
+   * Waits until receiver gets the number of payloads specified, in total.
+   */
+  synchronized void await(long count, long timeoutMillis) throws InterruptedException, TimeoutException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (received < count) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        throw new TimeoutException("Received " + received + " payloads of " + count + " at " + getUrl());
+      }
+      wait(left);
+    }
+  }
+
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      InputStream in      = exchange.getRequestBody();
+      byte[]      payload = ByteStreams.toByteArray(in);
+      in.close();
+
+      double dice = random.nextDouble();
+      if (dice < timeoutRate) {
+        // Plugin gives up on the request meanwhile, response is not counted
+        Thread.sleep(WebhooksConstants.POST_TIMEOUT + latency + 1000);
+        synchronized (this) { timedOut++; }
+        try {
+          respond(exchange, 200, OK);
+        }
+        catch (IOException ignored) {
+          // Plugin has closed the connection
+        }
+        return;
+      }
+
+      if (latency > 0) { Thread.sleep(latency); }
+
+      if (dice < (timeoutRate + errorRate)) {
+        synchronized (this) { failed++; }
+        respond(exchange, 500, ERROR);
+        return;
+      }
+
+      respond(exchange, 200, OK);
+      if (listener != null) { listener.received(payload); }
+      synchronized (this) {
+        received++;
+        notifyAll();
+      }
+    }
+    catch (InterruptedException ignored) {
+      // Receiver is stopped
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+
+  void stop(){
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
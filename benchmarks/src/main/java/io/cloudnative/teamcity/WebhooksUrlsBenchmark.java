@@ -0,0 +1,77 @@
+package io.cloudnative.teamcity;
+
+import static org.mockito.Mockito.*;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Artifact URLs of a build with 10k artifacts: {@link WebhooksUrls} prefixes vs. formatting each URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WebhooksUrlsBenchmark {
+
+  @Param("10000")
+  int artifactsCount;
+
+  SBuildServer buildServer;
+  SBuild       build;
+  WebhooksUrls urls;
+  List<String> artifactNames;
+
+
+  @Setup
+  public void setup(){
+    SBuildType buildType = mock(SBuildType.class, withSettings().stubOnly());
+    when(buildType.getExternalId()).thenReturn("Echo_Build");
+
+    buildServer = mock(SBuildServer.class, withSettings().stubOnly());
+    when(buildServer.getRootUrl()).thenReturn("http://127.0.0.1:8080");
+
+    build = mock(SBuild.class, withSettings().stubOnly());
+    when(build.getBuildType()).thenReturn(buildType);
+    when(build.getBuildNumber()).thenReturn("37");
+    when(build.getBuildId()).thenReturn(14L);
+
+    urls          = new WebhooksUrls(buildServer);
+    artifactNames = new ArrayList<String>(artifactsCount);
+    for (int j = 0; j < artifactsCount; j++){
+      artifactNames.add("echo-service-0.0." + j + "-SNAPSHOT.jar");
+    }
+  }
+
+
+  @Benchmark
+  public Map<String, String> prefixes(){
+    return urls.artifacts(build, artifactNames);
+  }
+
+
+  /**
+   * Baseline: URL formatted per artifact, as it was before {@link WebhooksUrls}.
+   */
+  @Benchmark
+  public Map<String, String> format(){
+    Map<String, String> artifacts = new TreeMap<String, String>();
+    for (String artifactName : artifactNames){
+      artifacts.put(artifactName, String.format("%s/repository/download/%s/%s/%s",
+                                                buildServer.getRootUrl(),
+                                                build.getBuildType().getExternalId(),
+                                                build.getBuildNumber(),
+                                                artifactName));
+    }
+    return artifacts;
+  }
+}
@@ -0,0 +1,206 @@
+package io.cloudnative.teamcity;
+
+import com.google.gson.Gson;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Payload serialized to UTF-8 JSON once per build and shared, as is, by all deliveries of it.
+ * Bytes are never modified after encoding, gzip-compressed bytes are computed once, when first needed, and shared as well.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class EncodedPayload {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // Gson instances are thread-safe
+  private static final Gson GSON = new Gson();
+  // Buffers grown above this size are not kept for reuse
+  private static final int  MAX_REUSED_BUFFER = 1024 * 1024;
+
+  private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() { return new Buffer(); }
+  };
+
+  byte[]                    bytes;
+  @NonFinal volatile byte[] gzipped;
+
+
+  private EncodedPayload(@NonNull byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+
+  /**
+   * Wraps bytes specified, they should not be modified afterwards.
+   */
+  static EncodedPayload of(@NonNull byte[] bytes){
+    return new EncodedPayload(bytes);
+  }
+
+
+  /**
+   * Writes payload's bytes to the output specified.
+   */
+  interface Writer {
+    void writeTo(@NonNull OutputStream out) throws IOException;
+  }
+
+
+  /**
+   * Serializes object specified to JSON, streaming it into a reusable per-thread buffer.
+   */
+  static EncodedPayload encode(@NonNull final Object payload){
+    return write(new Writer() {
+      @Override
+      public void writeTo(@NonNull OutputStream out) throws IOException {
+        val writer = new OutputStreamWriter(out, UTF8);
+        GSON.toJson(payload, writer);
+        writer.flush();
+      }
+    });
+  }
+
+
+  /**
+   * Creates payload from bytes written into a reusable per-thread buffer.
+   */
+  static EncodedPayload write(@NonNull Writer writer){
+    val buffer = BUFFERS.get();
+    buffer.reset();
+
+    try {
+      writer.writeTo(buffer);
+    }
+    catch (IOException e) {
+      // Not thrown by in-memory buffer
+      throw new RuntimeException(e);
+    }
+
+    val result = new EncodedPayload(buffer.toByteArray());
+    if (buffer.capacity() > MAX_REUSED_BUFFER) { BUFFERS.remove(); }
+    return result;
+  }
+
+
+  /**
+   * Joins payloads specified into a JSON array, copying their bytes as is.
+   */
+  static EncodedPayload array(@NonNull Collection<EncodedPayload> payloads){
+    int length = 2 + Math.max(0, payloads.size() - 1);
+    for (val payload : payloads){
+      length += payload.length();
+    }
+
+    val bytes = new byte[length];
+    int offset = 0;
+    bytes[offset++] = '[';
+    for (val payload : payloads){
+      if (offset > 1) { bytes[offset++] = ','; }
+      System.arraycopy(payload.bytes, 0, bytes, offset, payload.bytes.length);
+      offset += payload.bytes.length;
+    }
+    bytes[offset] = ']';
+
+    return new EncodedPayload(bytes);
+  }
+
+
+  /**
+   * Joins JSON arrays specified, as created by {@link #array}, into a single array, copying their elements as is.
+   */
+  static EncodedPayload concat(@NonNull Collection<EncodedPayload> arrays){
+    // Brackets, then each non-empty array's elements preceded by ',' but the first
+    int length = 1;
+    for (val array : arrays){
+      if (array.length() > 2) { length += (array.length() - 2) + 1; }
+    }
+
+    val bytes = new byte[Math.max(2, length)];
+    int offset = 0;
+    bytes[offset++] = '[';
+    for (val array : arrays){
+      val elements = array.bytes.length - 2;
+      if (elements < 1) { continue; }
+      if (offset > 1) { bytes[offset++] = ','; }
+      System.arraycopy(array.bytes, 1, bytes, offset, elements);
+      offset += elements;
+    }
+    bytes[offset] = ']';
+
+    return new EncodedPayload(bytes);
+  }
+
+
+  /**
+   * Bytes shared by all deliveries, callers must not modify them.
+   */
+  byte[] bytes(){
+    return bytes;
+  }
+
+
+  /**
+   * Gzip-compressed bytes, shared by all deliveries compressing this payload, callers must not modify them.
+   */
+  byte[] gzipped(){
+    val result = gzipped;
+    if (result != null) { return result; }
+
+    synchronized (this) {
+      if (gzipped == null) { gzipped = gzip(bytes); }
+      return gzipped;
+    }
+  }
+
+
+  private static byte[] gzip(@NonNull byte[] bytes){
+    try {
+      // Compressed JSON is usually several times smaller
+      val out  = new ByteArrayOutputStream(Math.max(64, bytes.length / 4));
+      val gzip = new GZIPOutputStream(out);
+      gzip.write(bytes);
+      gzip.close();
+      return out.toByteArray();
+    }
+    catch (IOException e) {
+      // Not thrown by in-memory stream
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  ByteBuffer asByteBuffer(){
+    return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+  }
+
+
+  int length(){
+    return bytes.length;
+  }
+
+
+  @Override
+  public String toString() {
+    return new String(bytes, UTF8);
+  }
+
+
+  private static class Buffer extends ByteArrayOutputStream {
+    Buffer() { super(8 * 1024); }
+    int capacity() { return buf.length; }
+  }
+}
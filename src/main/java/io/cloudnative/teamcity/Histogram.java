@@ -0,0 +1,89 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets, similar to HdrHistogram:
+ * every power of two range is split into 16 buckets, so that percentiles are accurate within 1/16 (6.25%).
+ * Recording is a couple of atomic increments, with no allocations.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS         = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  AtomicLong      count  = new AtomicLong();
+  AtomicLong      sum    = new AtomicLong();
+  AtomicLong      max    = new AtomicLong();
+
+
+  void record(long value){
+    if (value < 0) { value = 0; }
+
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current;
+    while ((value > (current = max.get())) && (! max.compareAndSet(current, value))) {
+      // retry
+    }
+  }
+
+
+  long getCount(){
+    return count.get();
+  }
+
+
+  long getSum(){
+    return sum.get();
+  }
+
+
+  long getMax(){
+    return max.get();
+  }
+
+
+  /**
+   * Retrieves value at the percentile specified (0.99 for p99), as the upper bound of the bucket it falls into.
+   */
+  long percentile(double percentile){
+    val total = count.get();
+    if (total < 1) { return 0; }
+
+    val rank       = Math.max(1, (long) Math.ceil(percentile * total));
+    long cumulated = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++){
+      cumulated += counts.get(bucket);
+      if (cumulated >= rank) {
+        return Math.min(upperBound(bucket), max.get());
+      }
+    }
+    return max.get();
+  }
+
+
+  private static int bucket(long value){
+    if (value < SUB_BUCKETS) { return (int) value; }
+    val shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+
+  private static long upperBound(int bucket){
+    if (bucket < SUB_BUCKETS) { return bucket; }
+    val shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    val sub   = bucket & (SUB_BUCKETS - 1);
+    return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+}
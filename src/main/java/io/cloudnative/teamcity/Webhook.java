@@ -0,0 +1,33 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.Value;
+import java.util.Set;
+
+
+/**
+ * Webhook defined in a project: receiver URL and its options, with option's filter, events and template compiled.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@EqualsAndHashCode(of = {"projectId", "url", "options"})
+@ToString(of = {"projectId", "url", "options"})
+class Webhook {
+  @NonNull String            projectId;
+  @NonNull String            url;
+  @NonNull WebhookOptions    options;
+  @NonNull WebhookFilter     filter;
+  @NonNull Set<WebhookEvent> events;
+  // Null if default payload is sent
+  WebhookTemplate            template;
+
+
+  static Webhook of(@NonNull String projectId, @NonNull String url, @NonNull WebhookOptions options){
+    return new Webhook(projectId, url, options, WebhookFilter.compile(options.getFilter()), options.getEventSet(),
+                       options.getTemplate() == null ? null : WebhookTemplate.compile(options.getTemplate()));
+  }
+}
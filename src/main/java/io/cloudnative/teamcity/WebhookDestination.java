@@ -0,0 +1,271 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/**
+ * Jobs pending for a single receiver ("scheme://host:port"), with a limit on concurrent POSTs to it.
+ *
+ * Pending jobs are ordered by start-time fair queuing across projects: each project's job is tagged with a virtual
+ * start time advancing by 1/weight per job of the project, so a project queuing a burst of jobs is interleaved with
+ * other projects rather than delaying them, and a project of weight 2 gets twice the share of a project of weight 1.
+ *
+ * Requests are also rate limited by a token bucket of the host's {@link WebhookHostLimit} and paused while
+ * receiver's "Retry-After" lasts.
+ *
+ * Also a circuit breaker of receiver's health: after "breaker.failures" consecutive failures it opens
+ * and requests fail fast for "breaker.openTime" ms, then a single probe request is let through (half-open),
+ * closing the breaker if it succeeds or opening it again if it fails.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhookDestination {
+
+  enum BreakerState { CLOSED, OPEN, HALF_OPEN }
+
+  @Getter String            key;
+  @Getter String            host;
+  int                       maxInFlight;
+  int                       failuresToOpen;
+  long                      openTime;
+  PriorityQueue<Pending>    pending     = new PriorityQueue<Pending>();
+  // Project => virtual finish time of its last job queued
+  Map<String, Double>       finishTimes = new HashMap<String, Double>();
+  @NonFinal double          virtualTime;
+  @NonFinal long            sequence;
+  @NonFinal int             inFlight;
+  @NonFinal boolean         bucketStarted;
+  @NonFinal double          tokens;
+  @NonFinal long            refilledAt;
+  @NonFinal long            pausedUntil;
+  @NonFinal boolean         wakeupScheduled;
+  @NonFinal BreakerState    state       = BreakerState.CLOSED;
+  @NonFinal int             failures;
+  @NonFinal long            openedAt;
+
+
+  /**
+   * Job queued with its virtual start time, jobs of the same start time keep their order.
+   */
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Pending implements Comparable<Pending> {
+    double     start;
+    long       sequence;
+    WebhookJob job;
+
+    @Override
+    public int compareTo(@NonNull Pending other) {
+      return (start != other.start ? Double.compare(start, other.start) : (sequence < other.sequence ? -1 : 1));
+    }
+  }
+
+
+  WebhookDestination(@NonNull String key, @NonNull String host, int maxInFlight, int failuresToOpen, long openTime) {
+    this.key            = key;
+    this.host           = host;
+    this.maxInFlight    = Math.max(1, maxInFlight);
+    this.failuresToOpen = Math.max(1, failuresToOpen);
+    this.openTime       = openTime;
+  }
+
+
+  /**
+   * Retrieves destination key of the URL specified, URLs of the same receiver share it.
+   */
+  static String keyOf(@NonNull String url){
+    try {
+      val uri = URI.create(url.trim());
+      if (uri.getHost() == null) { return url; }
+      return (uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort()).toLowerCase();
+    }
+    catch (IllegalArgumentException ignored) {
+      return url;
+    }
+  }
+
+
+  /**
+   * Retrieves host of the URL specified, host limits are looked up by it.
+   */
+  static String hostOf(@NonNull String url){
+    try {
+      val host = URI.create(url.trim()).getHost();
+      return (host != null ? host.toLowerCase() : url);
+    }
+    catch (IllegalArgumentException ignored) {
+      return url;
+    }
+  }
+
+
+  synchronized void offer(@NonNull WebhookJob job, @NonNull WebhookHostLimit limit){
+    val finishTime = finishTimes.get(job.getProjectId());
+    val start      = Math.max(virtualTime, (finishTime != null ? finishTime : 0));
+    finishTimes.put(job.getProjectId(), start + (1.0 / limit.getWeight(job.getProjectId())));
+    pending.add(new Pending(start, sequence++, job));
+  }
+
+
+  /**
+   * Takes next pending job if destination has a free slot and host's rate limit allows a request,
+   * the slot is then held until {@link #release()}.
+   */
+  synchronized WebhookJob acquire(@NonNull WebhookHostLimit limit){
+    if ((inFlight >= maxInFlight) || pending.isEmpty() || (throttledFor(limit) > 0)) { return null; }
+
+    if (limit.isLimited()) { tokens -= 1; }
+    inFlight++;
+    return poll();
+  }
+
+
+  /**
+   * Takes next pending job while breaker lets no request through: it is open and not ready for a probe yet,
+   * or the probe is in flight. Such jobs take neither a slot nor a rate limit token.
+   *
+   * @return null if breaker allows a request or nothing is pending
+   */
+  synchronized WebhookJob acquireShortCircuited(){
+    if (pending.isEmpty()) { return null; }
+
+    val shortCircuited = (state == BreakerState.HALF_OPEN) ||
+                         ((state == BreakerState.OPEN) && (System.currentTimeMillis() < (openedAt + openTime)));
+    return (shortCircuited ? poll() : null);
+  }
+
+
+  private WebhookJob poll(){
+    val next    = pending.poll();
+    virtualTime = next.start;
+    if (pending.isEmpty()) {
+      // Nothing is backlogged, projects start over with equal shares
+      finishTimes.clear();
+      virtualTime = 0;
+    }
+    return next.job;
+  }
+
+
+  synchronized void release(){
+    inFlight--;
+  }
+
+
+  /**
+   * Claims a wakeup of a throttled destination: pending jobs wait for a free slot, rate limit or "Retry-After".
+   *
+   * @return milliseconds to wake destination up after, 0 if it needs no wakeup (nothing is pending, all slots are taken,
+   *         or another wakeup is scheduled already), -1 if a job can be acquired right away
+   */
+  synchronized long claimWakeup(@NonNull WebhookHostLimit limit){
+    if (pending.isEmpty() || (inFlight >= maxInFlight)) { return 0; }
+
+    val delay = throttledFor(limit);
+    if (delay <= 0)      { return -1; }
+    if (wakeupScheduled) { return 0; }
+
+    wakeupScheduled = true;
+    return delay;
+  }
+
+
+  synchronized void wokenUp(){
+    wakeupScheduled = false;
+  }
+
+
+  /**
+   * Pauses requests for the time specified, as receiver's "Retry-After" asks.
+   */
+  synchronized void pause(long millis){
+    pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+  }
+
+
+  /**
+   * Milliseconds until next request is allowed by "Retry-After" and host's token bucket, 0 if it's allowed now.
+   */
+  private long throttledFor(@NonNull WebhookHostLimit limit){
+    val now = System.currentTimeMillis();
+    if (pausedUntil > now) { return pausedUntil - now; }
+    if (! limit.isLimited()) { return 0; }
+
+    val nanos = System.nanoTime();
+    if (bucketStarted) {
+      tokens = Math.min(limit.getCapacity(), tokens + (((nanos - refilledAt) / 1e9) * limit.getRate()));
+    }
+    else {
+      tokens        = limit.getCapacity();
+      bucketStarted = true;
+    }
+    refilledAt = nanos;
+
+    return (tokens >= 1 ? 0 : Math.max(1, (long) Math.ceil(((1 - tokens) * 1000) / limit.getRate())));
+  }
+
+
+  /**
+   * Determines if request to receiver can be sent: breaker is closed or request is the half-open probe.
+   */
+  synchronized boolean allowRequest(){
+    if (state == BreakerState.CLOSED) { return true; }
+
+    if ((state == BreakerState.OPEN) && (System.currentTimeMillis() >= (openedAt + openTime))) {
+      state = BreakerState.HALF_OPEN;
+      return true;
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Updates breaker with outcome of a request let through.
+   */
+  synchronized void requestCompleted(boolean succeeded){
+    if (succeeded) {
+      state    = BreakerState.CLOSED;
+      failures = 0;
+      return;
+    }
+
+    failures++;
+    if ((state == BreakerState.HALF_OPEN) || (failures >= failuresToOpen)) {
+      state    = BreakerState.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+
+  synchronized BreakerState getBreakerState(){
+    return state;
+  }
+
+
+  /**
+   * Milliseconds left until breaker lets a probe request through, 0 if it is not open.
+   */
+  synchronized long getOpenTimeLeft(){
+    return (state == BreakerState.CLOSED ? 0 : Math.max(0, openedAt + openTime - System.currentTimeMillis()));
+  }
+
+
+  synchronized int pendingCount(){
+    return pending.size();
+  }
+
+
+  synchronized int inFlightCount(){
+    return inFlight;
+  }
+}
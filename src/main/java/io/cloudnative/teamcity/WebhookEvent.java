@@ -0,0 +1,41 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+
+
+/**
+ * Build lifecycle events webhooks are subscribed to with "events" option, "buildFinished" by default.
+ */
+@Getter
+@AllArgsConstructor
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+enum WebhookEvent {
+
+  BUILD_QUEUED           ("buildQueued",           "Build queued"),
+  BUILD_DEQUEUED         ("buildRemovedFromQueue", "Build removed from queue"),
+  BUILD_STARTED          ("buildStarted",          "Build started"),
+  CHANGES_LOADED         ("changesLoaded",         "Build changes loaded"),
+  BUILD_PROBLEMS_CHANGED ("buildProblemsChanged",  "Build problems changed"),
+  BUILD_INTERRUPTED      ("buildInterrupted",      "Build interrupted"),
+  BUILD_FINISHED         ("buildFinished",         "Build completed");
+
+  /** Event's name in webhook options */
+  String key;
+  /** Payload's summary */
+  String summary;
+
+
+  @NonNull
+  static WebhookEvent of(@NonNull String key){
+    for (WebhookEvent event : values()){
+      if (event.key.equals(key)) { return event; }
+    }
+    throw new RuntimeException("Unknown webhook event '%s'".f(key));
+  }
+}
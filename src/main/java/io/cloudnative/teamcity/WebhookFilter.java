@@ -0,0 +1,116 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.collect.ImmutableSet;
+import jetbrains.buildServer.serverSide.SBuild;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+
+/**
+ * {@link WebhookOptions.Filter} compiled once, when hook is loaded or saved, into conditions evaluated
+ * before any payload work is done. Cheap conditions are evaluated first, "statusChanged" (which looks up
+ * the previous build) is evaluated last.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhookFilter {
+
+  static final WebhookFilter ALL = new WebhookFilter(new Condition[0]);
+
+  Condition[] conditions;
+
+
+  private interface Condition {
+    boolean matches(@NonNull SBuild build);
+  }
+
+
+  private WebhookFilter(@NonNull Condition[] conditions) {
+    this.conditions = conditions;
+  }
+
+
+  static WebhookFilter compile(WebhookOptions.Filter filter){
+    if (filter == null) { return ALL; }
+
+    val conditions = new ArrayList<Condition>();
+
+    if (filter.getStatus() != null) {
+      final boolean success = filter.getStatus().contains("success");
+      final boolean failure = filter.getStatus().contains("failure");
+      conditions.add(new Condition() {
+        @Override
+        public boolean matches(@NonNull SBuild build) {
+          return (build.getStatusDescriptor().isSuccessful() ? success : failure);
+        }
+      });
+    }
+
+    if (filter.getBuildType() != null) {
+      final Pattern buildTypes = globs(filter.getBuildType());
+      conditions.add(new Condition() {
+        @Override
+        public boolean matches(@NonNull SBuild build) {
+          return buildTypes.matcher(build.getBuildTypeExternalId()).matches();
+        }
+      });
+    }
+
+    if (filter.getBranch() != null) {
+      final Pattern branches = globs(filter.getBranch());
+      conditions.add(new Condition() {
+        @Override
+        public boolean matches(@NonNull SBuild build) {
+          val branch = build.getBranch();
+          return branches.matcher(branch == null ? "" : branch.getDisplayName()).matches();
+        }
+      });
+    }
+
+    if (filter.getTags() != null) {
+      final Set<String> tags = ImmutableSet.copyOf(filter.getTags());
+      conditions.add(new Condition() {
+        @Override
+        public boolean matches(@NonNull SBuild build) {
+          for (String tag : build.getTags()){
+            if (tags.contains(tag)) { return true; }
+          }
+          return false;
+        }
+      });
+    }
+
+    if (filter.isStatusChanged()) {
+      conditions.add(new Condition() {
+        @Override
+        public boolean matches(@NonNull SBuild build) {
+          val previous = build.getPreviousFinished();
+          return (previous == null) ||
+                 (previous.getStatusDescriptor().isSuccessful() != build.getStatusDescriptor().isSuccessful());
+        }
+      });
+    }
+
+    return (conditions.isEmpty() ? ALL : new WebhookFilter(conditions.toArray(new Condition[conditions.size()])));
+  }
+
+
+  private static Pattern globs(@NonNull List<String> globs){
+    // An empty list matches nothing, rather than everything. Globs are compiled one by one, they may contain ','
+    return (globs.isEmpty() ? Pattern.compile("(?!)") : globPattern(globs));
+  }
+
+
+  boolean matches(@NonNull SBuild build){
+    for (val condition : conditions){
+      if (! condition.matches(build)) { return false; }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,110 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import java.util.Map;
+
+
+/**
+ * Delivery limits of a receiver host, stored as JSON in webhooks settings next to projects' webhooks.
+ * Limits missing in JSON keep their defaults: no rate limit and equal weights of all projects.
+ */
+@Getter
+@EqualsAndHashCode
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+class WebhookHostLimit {
+
+  static final WebhookHostLimit NONE = new WebhookHostLimit();
+
+  // Gson instances are thread-safe
+  private static final Gson GSON = new Gson();
+
+  /** Requests per second POST-ed to the host, 0 - no limit. */
+  double               rate;
+  /** Requests that can be POST-ed at once after the host was idle, 0 - one second worth of "rate". */
+  int                  burst;
+  /** Project external ID => its share of the host relative to other projects, 1 if missing. */
+  Map<String, Integer> weights;
+
+
+  /**
+   * Parses limits from JSON specified, empty JSON means no limits.
+   */
+  @NonNull
+  static WebhookHostLimit parse(String json){
+    if (isEmpty(json)) { return NONE; }
+    try {
+      return valid(GSON.fromJson(json, WebhookHostLimit.class).or(NONE));
+    }
+    catch (JsonParseException e) {
+      throw new RuntimeException("Invalid host limit '%s': %s".f(json, e.getMessage()), e);
+    }
+  }
+
+
+  @NonNull
+  static WebhookHostLimit parse(@NonNull JsonElement json){
+    return valid(GSON.fromJson(json, WebhookHostLimit.class).or(NONE));
+  }
+
+
+  private static WebhookHostLimit valid(@NonNull WebhookHostLimit limit){
+    if ((limit.rate < 0) || (limit.burst < 0)) {
+      throw new RuntimeException("Invalid host limit '%s': negative rate or burst".f(limit.toJson()));
+    }
+    if (limit.weights != null) {
+      for (Integer weight : limit.weights.values()){
+        if ((weight == null) || (weight < 1)) {
+          throw new RuntimeException("Invalid host limit '%s': weights should be positive".f(limit.toJson()));
+        }
+      }
+    }
+    return limit;
+  }
+
+
+  boolean isLimited(){
+    return (rate > 0);
+  }
+
+
+  /**
+   * Maximal number of tokens in host's bucket.
+   */
+  double getCapacity(){
+    return (burst > 0 ? burst : Math.max(1, Math.ceil(rate)));
+  }
+
+
+  int getWeight(@NonNull String projectId){
+    final Integer weight = (weights != null ? weights.get(projectId) : null);
+    return (weight != null ? weight : 1);
+  }
+
+
+  @NonNull
+  JsonElement toJsonTree(){
+    return GSON.toJsonTree(this);
+  }
+
+
+  @NonNull
+  String toJson(){
+    return GSON.toJson(this);
+  }
+
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+}
@@ -0,0 +1,66 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Single payload delivery to a single webhook URL, queued by {@link WebhooksDelivery}.
+ */
+@Getter
+@AllArgsConstructor(staticName = "of")
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+class WebhookJob {
+
+  // Ids only need to be unique within the journal, seeding them with a timestamp keeps them unique across restarts
+  private static final AtomicLong IDS = new AtomicLong(System.currentTimeMillis() * 1000);
+
+  long                    id;
+  @NonNull String         projectId;
+  @NonNull String         url;
+  @NonNull EncodedPayload payload;
+  long                    createdAt;
+  int                     attempt;
+  long                    enqueuedAt;
+  // Builds payload is about, several for batches and none for queued builds
+  @NonNull long[]         buildIds;
+
+
+  static WebhookJob of(@NonNull String projectId, @NonNull String url, @NonNull EncodedPayload payload, @NonNull long ... buildIds){
+    return of(IDS.incrementAndGet(), projectId, url, payload, System.currentTimeMillis(), 0, System.nanoTime(), buildIds);
+  }
+
+
+  /**
+   * Creates a job restored from the journal, with the number of attempts it already made.
+   */
+  static WebhookJob restored(long            id,
+                             @NonNull String projectId,
+                             @NonNull String url,
+                             @NonNull EncodedPayload payload,
+                             long            createdAt,
+                             int             attempt,
+                             @NonNull long[] buildIds){
+    return of(id, projectId, url, payload, createdAt, attempt, System.nanoTime(), buildIds);
+  }
+
+
+  /**
+   * Creates this job restored from the journal with the attempt specified.
+   */
+  WebhookJob restored(int attempt){
+    return restored(id, projectId, url, payload, createdAt, attempt, buildIds);
+  }
+
+
+  /**
+   * Creates the next delivery attempt of this job.
+   */
+  WebhookJob retry(){
+    return of(id, projectId, url, payload, createdAt, attempt + 1, enqueuedAt, buildIds);
+  }
+}
@@ -0,0 +1,179 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Webhook's options, stored as JSON next to its URL. Options missing in JSON keep their defaults.
+ */
+@Getter
+@EqualsAndHashCode
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+class WebhookOptions {
+
+  static final WebhookOptions DEFAULT = new WebhookOptions();
+
+  // Gson instances are thread-safe
+  private static final Gson   GSON        = new Gson();
+  private static final String SECRET_MASK = "*****";
+
+  /** Milliseconds payloads are collected for before being POST-ed as a single JSON array, 0 - no batching. */
+  long         batchWindow;
+  /** Maximal number of payloads in a batch, a full batch is POST-ed right away, 0 - "batch.maxSize". */
+  int          batchSize;
+  /** Whether a batch keeps only the latest payload of each build configuration. */
+  boolean      coalesce;
+  /** Builds notified, all builds if missing. */
+  Filter       filter;
+  /** Names of {@link WebhookEvent}s notified, "buildFinished" if missing. */
+  List<String> events;
+  /** {@link WebhookTemplate} of payloads, default payload if missing. */
+  String       template;
+  /** Payloads of this many bytes or more are POST-ed gzip-compressed, 0 - never compressed. */
+  int          gzipThreshold;
+  /** Key of payloads' HMAC-SHA256 signature sent in {@link WebhooksConstants#SIGNATURE_HEADER}, not signed if missing. */
+  String       secret;
+
+
+  /**
+   * Conditions a build should meet to be notified, missing conditions match all builds.
+   * Build configurations and branches are matched with globs ("*" and "?").
+   */
+  @Getter
+  @EqualsAndHashCode
+  @FieldDefaults(level = AccessLevel.PRIVATE)
+  static class Filter {
+    /** "success" or "failure" */
+    List<String> status;
+    List<String> buildType;
+    List<String> branch;
+    /** Build should have at least one of the tags. */
+    List<String> tags;
+    /** Whether build's status should differ from the status of the previous finished build. */
+    boolean      statusChanged;
+  }
+
+
+  /**
+   * Parses options from JSON specified, empty JSON means default options.
+   */
+  @NonNull
+  static WebhookOptions parse(String json){
+    if (isEmpty(json)) { return DEFAULT; }
+    try {
+      return valid(GSON.fromJson(json, WebhookOptions.class).or(DEFAULT));
+    }
+    catch (JsonParseException e) {
+      throw new RuntimeException("Invalid webhook options '%s': %s".f(json, e.getMessage()), e);
+    }
+  }
+
+
+  @NonNull
+  static WebhookOptions parse(@NonNull JsonElement json){
+    return valid(GSON.fromJson(json, WebhookOptions.class).or(DEFAULT));
+  }
+
+
+  private static WebhookOptions valid(@NonNull WebhookOptions options){
+    if ((options.batchWindow < 0) || (options.batchSize < 0)) {
+      throw new RuntimeException("Invalid webhook options '%s': negative batch window or size".f(options));
+    }
+    if (options.gzipThreshold < 0) {
+      throw new RuntimeException("Invalid webhook options '%s': negative gzip threshold".f(options));
+    }
+    if ((options.secret != null) && options.secret.isEmpty()) {
+      throw new RuntimeException("Invalid webhook options '%s': empty secret".f(options));
+    }
+    if ((options.filter != null) && (options.filter.status != null)) {
+      for (String status : options.filter.status){
+        if (! ("success".equals(status) || "failure".equals(status))) {
+          throw new RuntimeException("Invalid webhook options '%s': status should be \"success\" or \"failure\"".f(options));
+        }
+      }
+    }
+    try {
+      options.getEventSet();
+      if (options.template != null) { WebhookTemplate.compile(options.template); }
+    }
+    catch (RuntimeException e) {
+      throw new RuntimeException("Invalid webhook options '%s': %s".f(options, e.getMessage()), e);
+    }
+    return options;
+  }
+
+
+  @NonNull
+  Set<WebhookEvent> getEventSet(){
+    if (events == null) { return Sets.immutableEnumSet(WebhookEvent.BUILD_FINISHED); }
+
+    val eventSet = EnumSet.noneOf(WebhookEvent.class);
+    for (String event : events){
+      eventSet.add(WebhookEvent.of(event));
+    }
+    return Sets.immutableEnumSet(eventSet);
+  }
+
+
+  boolean isBatched(){
+    return (batchWindow > 0);
+  }
+
+
+  boolean isSigned(){
+    return (secret != null);
+  }
+
+
+  /**
+   * Whether payload of the length specified is POST-ed compressed.
+   */
+  boolean isGzipped(int length){
+    return (gzipThreshold > 0) && (length >= gzipThreshold);
+  }
+
+
+  boolean isDefault(){
+    return equals(DEFAULT);
+  }
+
+
+  @NonNull
+  JsonElement toJsonTree(){
+    return GSON.toJsonTree(this);
+  }
+
+
+  @NonNull
+  String toJson(){
+    return GSON.toJson(this);
+  }
+
+
+  /**
+   * JSON with secret masked, for UI and logs.
+   */
+  @Override
+  public String toString() {
+    if (secret == null) { return toJson(); }
+
+    val json = GSON.toJsonTree(this).getAsJsonObject();
+    json.addProperty("secret", SECRET_MASK);
+    return GSON.toJson(json);
+  }
+}
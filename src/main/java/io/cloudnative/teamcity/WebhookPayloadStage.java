@@ -0,0 +1,24 @@
+package io.cloudnative.teamcity;
+
+import jetbrains.buildServer.serverSide.SBuild;
+import lombok.NonNull;
+import java.util.List;
+
+
+/**
+ * Stage of payload construction, contributing facts about the build.
+ * Stages run in parallel, each within its own deadline, see {@link WebhooksPayloadBuilder}.
+ */
+interface WebhookPayloadStage {
+
+  /**
+   * Stage name, used when reporting its timeouts and failures.
+   */
+  String getName();
+
+
+  /**
+   * Retrieves facts about the build, in the order they should appear in the payload.
+   */
+  List<WebhookPayload.Fact> facts(@NonNull SBuild build, @NonNull String buildPageUrl) throws Exception;
+}
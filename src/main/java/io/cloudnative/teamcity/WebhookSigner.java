@@ -0,0 +1,70 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.io.BaseEncoding;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Signs webhook's payloads with HMAC-SHA256 of its secret, signature is sent as "sha256=<hex>".
+ *
+ * Key is initialized once per webhook. {@link Mac}s are not thread-safe and are costly to look up,
+ * so they're pooled: a worker takes one, signs and puts it back. Pool grows up to the number of concurrent workers.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class WebhookSigner {
+
+  private static final String       ALGORITHM = "HmacSHA256";
+  private static final BaseEncoding HEX       = BaseEncoding.base16().lowerCase();
+
+  @Getter String secret;
+  SecretKeySpec  key;
+  Queue<Mac>     macs = new ConcurrentLinkedQueue<Mac>();
+
+
+  WebhookSigner(@NonNull String secret) {
+    this.secret = secret;
+    key         = new SecretKeySpec(secret.getBytes(EncodedPayload.UTF8), ALGORITHM);
+    // Fails right away if key or algorithm are not supported
+    macs.offer(newMac());
+  }
+
+
+  /**
+   * Signs bytes specified, as they are POST-ed.
+   */
+  @NonNull
+  String sign(@NonNull byte[] bytes){
+    val pooled = macs.poll();
+    val mac    = (pooled != null ? pooled : newMac());
+    try {
+      // doFinal() resets Mac for the next use
+      return "sha256=" + HEX.encode(mac.doFinal(bytes));
+    }
+    finally {
+      macs.offer(mac);
+    }
+  }
+
+
+  private Mac newMac(){
+    try {
+      val mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac;
+    }
+    catch (GeneralSecurityException e) {
+      throw new RuntimeException("Failed to initialize %s: %s".f(ALGORITHM, e.getMessage()), e);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+
+/**
+ * Payload template ("template" webhook option): JSON with "${field}" placeholders, "$$" is a literal "$".
+ *
+ * Template is compiled once, when webhook is loaded or saved, into a render plan: literal parts encoded to UTF-8
+ * and fields referenced. Rendering writes literals and JSON-escaped field values straight into the output buffer.
+ * Webhooks with the same template share the same compiled instance, so that it's rendered once per build.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+final class WebhookTemplate {
+
+  private static final byte[]                   HEX  = "0123456789abcdef".getBytes(EncodedPayload.UTF8);
+  private static final TypeAdapter<JsonElement> JSON = new Gson().getAdapter(JsonElement.class);
+
+  private static final LoadingCache<String, WebhookTemplate> TEMPLATES = CacheBuilder.newBuilder().
+                                                                         weakValues().
+                                                                         build(new CacheLoader<String, WebhookTemplate>() {
+                                                                           @Override
+                                                                           public WebhookTemplate load(@NonNull String text) {
+                                                                             return new WebhookTemplate(text);
+                                                                           }
+                                                                         });
+
+  /**
+   * Build fields templates can reference.
+   */
+  @Getter
+  @AllArgsConstructor
+  enum Field {
+    NAME         ("name"),
+    NUMBER       ("number"),
+    ID           ("id"),
+    STATUS       ("status"),
+    STATUS_TEXT  ("statusText"),
+    BUILD_TYPE_ID("buildTypeId"),
+    PROJECT_ID   ("projectId"),
+    BRANCH       ("branch"),
+    URL          ("url"),
+    EVENT        ("event"),
+    /** Default payload, inserted as is rather than as a JSON string */
+    PAYLOAD      ("payload");
+
+    String key;
+  }
+
+
+  /**
+   * Values of fields rendered.
+   */
+  interface Values {
+    @NonNull String         get(@NonNull Field field);
+    @NonNull EncodedPayload payload();
+  }
+
+
+  @Getter String text;
+  // Either byte[] literal or Field
+  Object[]       parts;
+  boolean        usesPayload;
+
+
+  private WebhookTemplate(@NonNull String text) {
+    this.text = text;
+
+    val parts   = new ArrayList<Object>();
+    val literal = new StringBuilder();
+
+    for (int j = 0; j < text.length(); j++){
+      val c = text.charAt(j);
+      if ((c == '$') && (j + 1 < text.length()) && (text.charAt(j + 1) == '$')) {
+        literal.append('$');
+        j++;
+      }
+      else if ((c == '$') && (j + 1 < text.length()) && (text.charAt(j + 1) == '{')) {
+        val end = text.indexOf('}', j);
+        if (end < 0) { throw new RuntimeException("Unclosed '${' at position %s of template".f(j)); }
+
+        val field = field(text.substring(j + 2, end).trim());
+        if (literal.length() > 0) {
+          parts.add(literal.toString().getBytes(EncodedPayload.UTF8));
+          literal.setLength(0);
+        }
+        parts.add(field);
+        j = end;
+      }
+      else {
+        literal.append(c);
+      }
+    }
+
+    if (literal.length() > 0) { parts.add(literal.toString().getBytes(EncodedPayload.UTF8)); }
+
+    this.parts       = parts.toArray();
+    this.usesPayload = parts.contains(Field.PAYLOAD);
+  }
+
+
+  /**
+   * Compiles template specified, or retrieves it if it's already compiled.
+   * Template is verified to render valid JSON.
+   */
+  @NonNull
+  static WebhookTemplate compile(@NonNull String text){
+    final WebhookTemplate template;
+    try {
+      template = TEMPLATES.getUnchecked(text);
+    }
+    catch (UncheckedExecutionException e) {
+      throw new RuntimeException("Invalid template '%s': %s".f(text, e.getCause().getMessage()), e.getCause());
+    }
+
+    try {
+      // Parsed strictly, unlike JsonParser
+      JSON.fromJson(template.render(new Values() {
+        @NonNull
+        @Override
+        public String get(@NonNull Field field) { return (field == Field.ID ? "1" : field.getKey()); }
+
+        @NonNull
+        @Override
+        public EncodedPayload payload() { return EncodedPayload.of("{}".getBytes(EncodedPayload.UTF8)); }
+      }).toString());
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Invalid template '%s', it doesn't render to JSON: %s".f(text, e.getMessage()), e);
+    }
+    catch (JsonParseException e) {
+      throw new RuntimeException("Invalid template '%s', it doesn't render to JSON: %s".f(text, e.getMessage()), e);
+    }
+
+    return template;
+  }
+
+
+  private static Field field(@NonNull String key){
+    for (Field field : Field.values()){
+      if (field.getKey().equals(key)) { return field; }
+    }
+    throw new RuntimeException("Unknown template field '%s'".f(key));
+  }
+
+
+  @NonNull
+  EncodedPayload render(@NonNull final Values values){
+    // Retrieved upfront, building it while rendering would reuse the same per-thread buffer
+    final EncodedPayload payload = (usesPayload ? values.payload() : null);
+
+    return EncodedPayload.write(new EncodedPayload.Writer() {
+      @Override
+      public void writeTo(@NonNull OutputStream out) throws IOException {
+        for (Object part : parts){
+          if (part instanceof byte[]) {
+            out.write((byte[]) part);
+          }
+          else if (part == Field.PAYLOAD) {
+            out.write(payload.bytes());
+          }
+          else {
+            writeEscaped(values.get((Field) part), out);
+          }
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Writes value as JSON string content, without quotes.
+   */
+  private static void writeEscaped(@NonNull String value, @NonNull OutputStream out) throws IOException {
+    int start = 0;
+    for (int j = 0; j < value.length(); j++){
+      val c = value.charAt(j);
+      if ((c >= 0x20) && (c != '"') && (c != '\\')) { continue; }
+
+      if (j > start) { out.write(value.substring(start, j).getBytes(EncodedPayload.UTF8)); }
+      start = j + 1;
+
+      out.write('\\');
+      switch (c) {
+        case '"'  : out.write('"');  break;
+        case '\\' : out.write('\\'); break;
+        case '\n' : out.write('n');  break;
+        case '\r' : out.write('r');  break;
+        case '\t' : out.write('t');  break;
+        default   :
+          out.write('u');
+          out.write('0');
+          out.write('0');
+          out.write(HEX[(c >> 4) & 0xF]);
+          out.write(HEX[c & 0xF]);
+      }
+    }
+
+    if (start == 0) {
+      out.write(value.getBytes(EncodedPayload.UTF8));
+    }
+    else if (start < value.length()) {
+      out.write(value.substring(start).getBytes(EncodedPayload.UTF8));
+    }
+  }
+}
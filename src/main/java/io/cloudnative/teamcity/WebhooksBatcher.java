@@ -0,0 +1,194 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Collects payloads of batched webhooks ("batchWindow" option) and hands them over to {@link WebhooksDelivery}
+ * as a single JSON array POST, once hook's window elapses or "batchSize" payloads are collected.
+ *
+ * With "coalesce" option a batch keeps only the latest payload of each build configuration.
+ * Payloads of the same build configuration keep their order within a batch.
+ *
+ * Each payload is journaled as it is added, as a single-payload batch of its own, and marked done once the batch
+ * is handed over to delivery. Payloads collected when the server crashed are delivered individually after restart,
+ * as one-element arrays, and are not coalesced.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksBatcher {
+
+  WebhooksDelivery                   delivery;
+  WebhooksJournal                    journal;
+  ScheduledExecutorService           timer;
+  ConcurrentMap<String, Batch>       batches = new ConcurrentHashMap<String, Batch>();
+  int                                maxSize;
+
+
+  /**
+   * Payloads collected for a single project's webhook, closed once handed over to delivery.
+   */
+  @RequiredArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Batch {
+    @NonNull String                projectId;
+    @NonNull String                url;
+    // Journaled single-payload jobs, keyed by build configuration when coalescing, by a unique key otherwise
+    Map<Object, WebhookJob>        entries = new LinkedHashMap<Object, WebhookJob>();
+    @NonFinal boolean              closed;
+  }
+
+
+  public WebhooksBatcher(@NonNull WebhooksDelivery delivery, @NonNull WebhooksJournal journal) {
+    this.delivery = delivery;
+    this.journal  = journal;
+    maxSize       = Math.max(1, TeamCityProperties.getInteger(BATCH_MAX_SIZE, BATCH_MAX_SIZE_DEFAULT));
+    timer         = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                               setNameFormat(PLUGIN_TITLE + " batches %d").
+                                                               setDaemon(true).
+                                                               build());
+  }
+
+
+  /**
+   * Adds build's payload to webhook's current batch, starting a new one if there's none.
+   */
+  void add(@NonNull Webhook webhook, @NonNull String buildTypeId, @NonNull long[] buildIds, @NonNull EncodedPayload payload){
+    val options   = webhook.getOptions();
+    val key       = webhook.getProjectId() + ' ' + webhook.getUrl();
+    val batchSize = (options.getBatchSize() > 0 ? Math.min(options.getBatchSize(), maxSize) : maxSize);
+    val entry     = WebhookJob.of(webhook.getProjectId(), webhook.getUrl(),
+                                  EncodedPayload.array(Collections.singletonList(payload)), buildIds);
+    journal.append(entry);
+
+    while (true) {
+      Batch batch = batches.get(key);
+      if (batch == null) {
+        val created = new Batch(webhook.getProjectId(), webhook.getUrl());
+        batch = batches.putIfAbsent(key, created);
+        if (batch == null) {
+          batch = created;
+          scheduleFlush(key, created, options.getBatchWindow());
+        }
+      }
+
+      WebhookJob replaced;
+      boolean    full;
+      synchronized (batch) {
+        // Flushed meanwhile, retrying with a new batch
+        if (batch.closed) { continue; }
+
+        // Re-inserted, so that coalesced payload takes position of the latest build
+        val payloadKey = (options.isCoalesce() ? buildTypeId : new Object());
+        replaced       = batch.entries.remove(payloadKey);
+        batch.entries.put(payloadKey, entry);
+
+        full = (batch.entries.size() >= batchSize);
+        if (full) { close(key, batch); }
+      }
+
+      // Coalesced payload is superseded by the one journaled above
+      if (replaced != null) { journal.done(replaced); }
+      if (full) { send(batch); }
+      return;
+    }
+  }
+
+
+  private void scheduleFlush(@NonNull final String key, @NonNull final Batch batch, long window){
+    try {
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush(key, batch);
+        }
+      }, window, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException ignored) {
+      // Shutting down, batch is flushed by shutdown()
+    }
+  }
+
+
+  private void flush(@NonNull String key, @NonNull Batch batch){
+    synchronized (batch) {
+      if (batch.closed) { return; }
+      close(key, batch);
+    }
+    send(batch);
+  }
+
+
+  /**
+   * Closes the batch and removes it, should be called while holding batch's lock.
+   * Entries of a closed batch are no longer modified.
+   */
+  private void close(@NonNull String key, @NonNull Batch batch){
+    batch.closed = true;
+    batches.remove(key, batch);
+  }
+
+
+  /**
+   * Hands closed batch's payloads over to delivery as a single job, journaled by delivery,
+   * and marks batch's entries done. Entries remain journaled if job couldn't be submitted.
+   */
+  private void send(@NonNull Batch batch){
+    if (batch.entries.isEmpty()) { return; }
+
+    int count = 0;
+    for (val entry : batch.entries.values()){
+      count += entry.getBuildIds().length;
+    }
+
+    val buildIds = new long[count];
+    val payloads = new ArrayList<EncodedPayload>(batch.entries.size());
+    int j        = 0;
+    for (val entry : batch.entries.values()){
+      for (long buildId : entry.getBuildIds()){
+        buildIds[j++] = buildId;
+      }
+      payloads.add(entry.getPayload());
+    }
+
+    try {
+      delivery.submit(WebhookJob.of(batch.projectId, batch.url, EncodedPayload.concat(payloads), buildIds));
+    }
+    catch (Throwable t) {
+      error("Failed to submit a batch of %s builds to '%s'".f(count, batch.url), t);
+      return;
+    }
+
+    for (val entry : batch.entries.values()){
+      journal.done(entry);
+    }
+  }
+
+
+  int getBatchesPending(){
+    return batches.size();
+  }
+
+
+  /**
+   * Stops the timer and hands all pending batches over to delivery, so that they're journaled.
+   */
+  public void shutdown(){
+    timer.shutdownNow();
+    for (val entry : batches.entrySet()){
+      flush(entry.getKey(), entry.getValue());
+    }
+  }
+}
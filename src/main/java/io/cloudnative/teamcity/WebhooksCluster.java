@@ -0,0 +1,178 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coordinates nodes of a multi-node TeamCity, once "cluster.nodeId" is set to a distinct value on each node
+ * sharing the data directory. Without it the server is a single node and nothing changes.
+ *
+ * Every node receives the same build events, so each event is delivered to a webhook by the node claiming it first:
+ * a claim is a file named after event, build, occurrence and webhook, created atomically in plugin's shared data directory.
+ * Claims older than "cluster.claimTtl" are deleted by any node.
+ *
+ * Webhooks changed on one node reach others through {@link WebhooksConfigWatcher}.
+ * Delivery journal and history are kept per node, as jobs are owned by the node that claimed them.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksCluster {
+
+  // Null on a single node
+  String                   nodeId;
+  File                     claims;
+  long                     claimTtl;
+  ScheduledExecutorService timer;
+  AtomicLong               claimed = new AtomicLong();
+  AtomicLong               lost    = new AtomicLong();
+  // Times each event was seen per build, kept as long as its claims
+  LoadingCache<String, AtomicInteger> occurrences;
+
+
+  public WebhooksCluster(@NonNull ServerPaths serverPaths) {
+    val node = TeamCityProperties.getProperty(CLUSTER_NODE_ID, "").trim();
+    // Node ID becomes part of directory names
+    nodeId   = (node.isEmpty() ? null : node.replaceAll("[^A-Za-z0-9._-]", "_"));
+    claims   = new File(new File(serverPaths.getPluginDataDirectory(), PLUGIN_NAME), "claims");
+    claimTtl = Math.max(1000, TeamCityProperties.getInteger(CLUSTER_CLAIM_TTL, CLUSTER_CLAIM_TTL_DEFAULT));
+    timer    = (nodeId == null ? null : Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                                                   setNameFormat(PLUGIN_TITLE + " cluster").
+                                                                                   setDaemon(true).
+                                                                                   build()));
+    occurrences = CacheBuilder.newBuilder().
+                  expireAfterAccess(claimTtl, TimeUnit.MILLISECONDS).
+                  build(new CacheLoader<String, AtomicInteger>() {
+                    @Override
+                    public AtomicInteger load(@NonNull String key) { return new AtomicInteger(); }
+                  });
+
+    if ((nodeId != null) && (! (claims.isDirectory() || claims.mkdirs()))) {
+      error("Failed to create claims directory '%s'".f(path(claims)));
+    }
+  }
+
+
+  public void start(){
+    if (nodeId == null) { return; }
+
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() { deleteExpiredClaims(); }
+    }, 0, claimTtl / 4, TimeUnit.MILLISECONDS);
+
+    log("Node '%s' of a cluster, claiming events in '%s'".f(nodeId, path(claims)));
+  }
+
+
+  public void shutdown(){
+    if (timer != null) { timer.shutdownNow(); }
+  }
+
+
+  boolean isClustered(){
+    return (nodeId != null);
+  }
+
+
+  /**
+   * Claims delivery of the event to each webhook, on the payload builder's thread. Webhooks are claimed one by one,
+   * as nodes briefly disagree on them while settings changed on one node reach others.
+   *
+   * An event seen again with the same ID is its next occurrence: all nodes receive the same events,
+   * so they count occurrences the same way.
+   *
+   * @param id identifies event's occurrence: build ID or queued item ID, the same on all nodes
+   * @return webhooks this node is to deliver the event to: all of them on a single node, those it claimed first
+   *         and those it failed to claim (a duplicate delivery is better than a lost one)
+   */
+  @NonNull
+  List<Webhook> claim(@NonNull WebhookEvent event, @NonNull String id, @NonNull List<Webhook> webhooks){
+    if (nodeId == null) { return webhooks; }
+
+    val key     = event.getKey() + "-" + id;
+    val prefix  = key + "-" + occurrences.getUnchecked(key).incrementAndGet() + "-";
+    val claimed = new ArrayList<Webhook>(webhooks.size());
+    for (val webhook : webhooks){
+      val webhookId = Hashing.sha1().hashString(webhook.getProjectId() + ' ' + webhook.getUrl(), EncodedPayload.UTF8);
+      if (claim(new File(claims, prefix + webhookId))) { claimed.add(webhook); }
+    }
+
+    if (claimed.size() < webhooks.size()) {
+      debug("%s() of '%s' is claimed by another node for %s webhooks", event.getKey(), id, webhooks.size() - claimed.size());
+    }
+    return claimed;
+  }
+
+
+  /**
+   * Resolves node's own directory: the one specified on a single node, a sibling suffixed with node ID in a cluster.
+   */
+  @NonNull
+  File nodeDirectory(@NonNull File directory){
+    return (nodeId == null ? directory : new File(directory.getParentFile(), directory.getName() + "-" + nodeId));
+  }
+
+
+  long getClaimed(){
+    return claimed.get();
+  }
+
+
+  long getClaimsLost(){
+    return lost.get();
+  }
+
+
+  private boolean claim(@NonNull File claim){
+    try {
+      if (claim.createNewFile()) {
+        claimed.incrementAndGet();
+        return true;
+      }
+      lost.incrementAndGet();
+      return false;
+    }
+    catch (IOException e) {
+      error("Failed to claim '%s', delivering it".f(path(claim)), e);
+      return true;
+    }
+  }
+
+
+  private void deleteExpiredClaims(){
+    val files = claims.listFiles();
+    if (files == null) { return; }
+
+    val expired = System.currentTimeMillis() - claimTtl;
+    int deleted = 0;
+    for (val file : files){
+      // Deleted by another node meanwhile if it fails
+      if ((file.lastModified() < expired) && file.delete()) { deleted++; }
+    }
+    if (deleted > 0) {
+      debug("Deleted %s expired claims", deleted);
+    }
+  }
+}
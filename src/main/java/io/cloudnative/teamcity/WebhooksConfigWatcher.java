@@ -0,0 +1,74 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Picks up changes of "webhooks.json" and "s3.json" made outside of the UI: by automation, by hand or by other nodes
+ * of a multi-node TeamCity. Files are checked every "config.pollInterval" ms, a check is a couple of file stats,
+ * and are parsed only once they change. Parsed settings replace the previous ones atomically, so that reading
+ * them on builds' path costs no I/O.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksConfigWatcher {
+
+  WebhooksSettings         settings;
+  WebhooksS3               s3;
+  long                     interval;
+  ScheduledExecutorService timer;
+
+
+  public WebhooksConfigWatcher(@NonNull WebhooksSettings settings, @NonNull WebhooksS3 s3) {
+    this.settings = settings;
+    this.s3       = s3;
+    interval      = Math.max(100, TeamCityProperties.getInteger(CONFIG_POLL_INTERVAL, CONFIG_POLL_INTERVAL_DEFAULT));
+    timer         = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                               setNameFormat(PLUGIN_TITLE + " config watcher").
+                                                               setDaemon(true).
+                                                               build());
+  }
+
+
+  public void start(){
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() { check(); }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+
+  public void shutdown(){
+    timer.shutdownNow();
+  }
+
+
+  /**
+   * Reloads files changed since they were last read.
+   */
+  void check(){
+    try {
+      settings.reloadIfChanged();
+    }
+    catch (Throwable t) {
+      error("Failed to reload '%s'".f(SETTINGS_FILE), t);
+    }
+
+    try {
+      s3.reloadIfChanged();
+    }
+    catch (Throwable t) {
+      error("Failed to reload '%s'".f(S3_SETTINGS_FILE), t);
+    }
+  }
+}
@@ -9,9 +9,72 @@ interface WebhooksConstants {
   String PLUGIN_TITLE       = "WebHooks";
   String PLUGIN_NAME        = PLUGIN_TITLE.toLowerCase();
   String CONTROLLER_PATH    = PLUGIN_NAME + "/index.html";
+  String METRICS_PATH       = PLUGIN_NAME + "/metrics.html";
+  String REDELIVERY_PATH    = PLUGIN_NAME + "/redeliver.html";
   String SETTINGS_FILE      = PLUGIN_NAME + ".json";
   String S3_SETTINGS_FILE   = "s3.json";
   int    POST_TIMEOUT       = 10000;
+  String SIGNATURE_HEADER   = "X-WebHooks-Signature";
   // https://confluence.jetbrains.com/display/TCD9/Plugin+Development+FAQ#PluginDevelopmentFAQ-HowtoUseLogging
   Logger LOG                = Loggers.SERVER;
+
+  // Delivery tuning, overridable with TeamCity internal properties
+  String PROPERTY_PREFIX                 = "teamcity." + PLUGIN_NAME + ".";
+  String DELIVERY_WORKERS                = PROPERTY_PREFIX + "delivery.workers";
+  int    DELIVERY_WORKERS_DEFAULT        = 4;
+  String QUEUE_CAPACITY                  = PROPERTY_PREFIX + "delivery.queueCapacity";
+  int    QUEUE_CAPACITY_DEFAULT          = 1000;
+  String DESTINATION_LIMIT               = PROPERTY_PREFIX + "delivery.perDestination";
+  int    DESTINATION_LIMIT_DEFAULT       = 2;
+  String DRAIN_TIMEOUT                   = PROPERTY_PREFIX + "delivery.drainTimeout";
+  int    DRAIN_TIMEOUT_DEFAULT           = 30000;
+  String RETRY_MAX_ATTEMPTS              = PROPERTY_PREFIX + "retry.maxAttempts";
+  int    RETRY_MAX_ATTEMPTS_DEFAULT      = 10;
+  String RETRY_MAX_AGE                   = PROPERTY_PREFIX + "retry.maxAge";
+  long   RETRY_MAX_AGE_DEFAULT           = 24 * 60 * 60 * 1000L;
+  String RETRY_DELAY                     = PROPERTY_PREFIX + "retry.delay";
+  int    RETRY_DELAY_DEFAULT             = 1000;
+  String RETRY_MAX_DELAY                 = PROPERTY_PREFIX + "retry.maxDelay";
+  int    RETRY_MAX_DELAY_DEFAULT         = 10 * 60 * 1000;
+  String BREAKER_FAILURES                = PROPERTY_PREFIX + "breaker.failures";
+  int    BREAKER_FAILURES_DEFAULT        = 5;
+  String BREAKER_OPEN_TIME               = PROPERTY_PREFIX + "breaker.openTime";
+  int    BREAKER_OPEN_TIME_DEFAULT       = 60000;
+  String BATCH_MAX_SIZE                  = PROPERTY_PREFIX + "batch.maxSize";
+  int    BATCH_MAX_SIZE_DEFAULT          = 500;
+  String TRANSPORT_MAX_PER_ROUTE         = PROPERTY_PREFIX + "transport.maxPerRoute";
+  int    TRANSPORT_MAX_PER_ROUTE_DEFAULT = 4;
+  String TRANSPORT_MAX_TOTAL             = PROPERTY_PREFIX + "transport.maxTotal";
+  int    TRANSPORT_MAX_TOTAL_DEFAULT     = 50;
+  String TRANSPORT_IDLE_TIMEOUT          = PROPERTY_PREFIX + "transport.idleTimeout";
+  int    TRANSPORT_IDLE_TIMEOUT_DEFAULT  = 30000;
+  String S3_BUCKET_TTL                   = PROPERTY_PREFIX + "s3.bucketTtl";
+  int    S3_BUCKET_TTL_DEFAULT           = 10 * 60 * 1000;
+  String PAYLOAD_THREADS                 = PROPERTY_PREFIX + "payload.threads";
+  int    PAYLOAD_THREADS_DEFAULT         = 2;
+  String PAYLOAD_QUEUE_CAPACITY          = PROPERTY_PREFIX + "payload.queueCapacity";
+  int    PAYLOAD_QUEUE_CAPACITY_DEFAULT  = 1000;
+  String STAGE_TIMEOUT                   = PROPERTY_PREFIX + "payload.stageTimeout";
+  int    STAGE_TIMEOUT_DEFAULT           = 5000;
+  String ARTIFACTS_MAX_ENTRIES           = PROPERTY_PREFIX + "artifacts.maxEntries";
+  int    ARTIFACTS_MAX_ENTRIES_DEFAULT   = 100;
+  String ARTIFACTS_GLOB                  = PROPERTY_PREFIX + "artifacts.glob";
+  String ARTIFACTS_GLOB_DEFAULT          = "*";
+  int    ARTIFACTS_CACHE_SIZE            = 1000;
+  String JOURNAL_SEGMENT_SIZE            = PROPERTY_PREFIX + "journal.segmentSize";
+  int    JOURNAL_SEGMENT_SIZE_DEFAULT    = 4 * 1024 * 1024;
+  String JOURNAL_SYNC_INTERVAL           = PROPERTY_PREFIX + "journal.syncInterval";
+  int    JOURNAL_SYNC_INTERVAL_DEFAULT   = 200;
+  String HISTORY_SIZE                    = PROPERTY_PREFIX + "history.size";
+  int    HISTORY_SIZE_DEFAULT            = 1000;
+  int    HISTORY_PAGE_SIZE               = 20;
+  String REDELIVERY_RATE                 = PROPERTY_PREFIX + "redelivery.rate";
+  int    REDELIVERY_RATE_DEFAULT         = 10;
+  String REDELIVERY_MAX_BUILDS           = PROPERTY_PREFIX + "redelivery.maxBuilds";
+  int    REDELIVERY_MAX_BUILDS_DEFAULT   = 10000;
+  String CONFIG_POLL_INTERVAL            = PROPERTY_PREFIX + "config.pollInterval";
+  int    CONFIG_POLL_INTERVAL_DEFAULT    = 2000;
+  String CLUSTER_NODE_ID                 = PROPERTY_PREFIX + "cluster.nodeId";
+  String CLUSTER_CLAIM_TTL               = PROPERTY_PREFIX + "cluster.claimTtl";
+  int    CLUSTER_CLAIM_TTL_DEFAULT       = 60 * 60 * 1000;
 }
@@ -4,6 +4,8 @@ package io.cloudnative.teamcity;
 import static io.cloudnative.teamcity.WebhooksConstants.*;
 import static io.cloudnative.teamcity.WebhooksUtils.*;
 import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.util.SessionUser;
 import jetbrains.buildServer.web.openapi.WebControllerManager;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -16,10 +18,12 @@ import org.jetbrains.annotations.Nullable;
 import org.springframework.web.servlet.ModelAndView;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Collections;
 
 
 /**
- * Called when project's webhooks are updated.
+ * Called when project's webhooks or limits of their receiver hosts are updated.
  */
 @ExtensionMethod(LombokExtensions.class)
 @AllArgsConstructor
@@ -43,21 +47,40 @@ public class WebhooksController extends BaseController {
     val projectId = notEmpty(request.getParameter("projectId"), "Missing 'projectId' parameter in request");
     val delete    = request.getParameter("delete");
     val add       = request.getParameter("add");
+    val host      = request.getParameter("host");
 
-    if (isEmpty(delete) && isEmpty(add)) {
-      throw new RuntimeException("Unknown operation: neither 'delete' nor 'add'");
+    if (isEmpty(delete) && isEmpty(add) && isEmpty(host)) {
+      throw new RuntimeException("Unknown operation: neither 'delete', 'add' nor 'host'");
     }
 
-    if (notEmpty(delete)) {
+    if (notEmpty(host)) {
+      // Hosts are shared by all projects, their limits are server settings
+      val user = SessionUser.getUser(request);
+      if ((user == null) || (! user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS))) {
+        throw new RuntimeException("Changing limits of host '%s' requires permission to change server settings".f(host));
+      }
+
+      // Empty limit removes host's limits
+      val limit = WebhookHostLimit.parse(request.getParameter("limit"));
+      settings.apply(Collections.singletonList(limit.equals(WebhookHostLimit.NONE) ?
+                                                 WebhooksSettings.Change.unlimit(host) :
+                                                 WebhooksSettings.Change.limit(host, limit)));
+    }
+    else if (notEmpty(delete)) {
       final String urlToDelete = notEmpty(request.getParameter(delete),
                                           "Missing '%s' parameter in request (url to delete)".f(delete));
       settings.removeUrl(projectId, urlToDelete);
     }
     else {
-      val urlToAdd = request.getParameter(add);
-      if (notEmpty(urlToAdd)) {
-        settings.addUrl(projectId, urlToAdd);
+      // Several URLs separated by whitespace are added at once, with the same options
+      val options = WebhookOptions.parse(request.getParameter(add + "-options"));
+      val changes = new ArrayList<WebhooksSettings.Change>();
+      for (String urlToAdd : request.getParameter(add).or("").trim().split("\\s+")){
+        if (notEmpty(urlToAdd)) {
+          changes.add(WebhooksSettings.Change.add(projectId, urlToAdd, options));
+        }
       }
+      settings.apply(changes);
     }
 
     return new ModelAndView("redirect:/project.html?projectId=%s&tab=%s".f(projectId, PLUGIN_NAME));
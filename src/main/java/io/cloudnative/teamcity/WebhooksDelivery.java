@@ -0,0 +1,535 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Delivers payloads to webhooks asynchronously, off TeamCity's event dispatching thread.
+ *
+ * Jobs are queued per destination (receiver host), up to "delivery.queueCapacity" jobs in total (jobs parked
+ * for their next attempt included),
+ * and POST-ed by a pool of "delivery.workers" threads, no more than "delivery.perDestination" at a time
+ * to the same receiver, so that a single slow receiver can't occupy all workers.
+ *
+ * Receivers failing repeatedly are short-circuited by their breaker (see {@link WebhookDestination}),
+ * jobs for them are parked until breaker lets a probe request through, and given up on like failed ones.
+ *
+ * Receiver hosts can be rate limited with {@link WebhookHostLimit}s in settings, jobs of projects sharing a host
+ * are interleaved by weighted fair queuing. Receivers responding with "Retry-After" are not sent anything until it passes.
+ *
+ * Payloads are POST-ed compressed and signed as webhook's options ask, see {@link WebhookSigner}.
+ *
+ * Jobs are recorded in {@link WebhooksJournal} until delivered. Failed deliveries are retried with exponential
+ * backoff and jitter, up to "retry.maxAttempts" times or until job is "retry.maxAge" ms old.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksDelivery {
+
+  private static final WebhooksTransport.Response NO_RESPONSE = new WebhooksTransport.Response(0, "", 0);
+
+  WebhooksSettings                              settings;
+  WebhooksJournal                               journal;
+  WebhooksTransport                             transport;
+  WebhooksMetrics                               metrics;
+  WebhooksHistory                               history;
+  ThreadPoolExecutor                            workers;
+  ScheduledExecutorService                      retries;
+  ConcurrentMap<String, WebhookDestination>     destinations = new ConcurrentHashMap<String, WebhookDestination>();
+  // "projectId url" => webhook's signer, dropped when project's webhooks change
+  ConcurrentMap<String, WebhookSigner>          signers      = new ConcurrentHashMap<String, WebhookSigner>();
+  Random                                        random       = new Random();
+  int                                           capacity;
+  int                                           perDestination;
+  long                                          drainTimeout;
+  int                                           maxAttempts;
+  long                                          maxAge;
+  long                                          retryDelay;
+  long                                          maxRetryDelay;
+  int                                           failuresToOpen;
+  long                                          openTime;
+  AtomicInteger                                 queued       = new AtomicInteger();
+  AtomicInteger                                 parked       = new AtomicInteger();
+  AtomicLong                                    delivered    = new AtomicLong();
+  AtomicLong                                    failed       = new AtomicLong();
+  AtomicLong                                    retried      = new AtomicLong();
+  AtomicLong                                    rejected     = new AtomicLong();
+  AtomicLong                                    skipped      = new AtomicLong();
+  AtomicLong                                    throttled    = new AtomicLong();
+  @NonFinal volatile boolean                    accepting    = true;
+
+
+  public WebhooksDelivery(@NonNull WebhooksSettings  settings,
+                          @NonNull WebhooksJournal   journal,
+                          @NonNull WebhooksTransport transport,
+                          @NonNull WebhooksMetrics   metrics,
+                          @NonNull WebhooksHistory   history) {
+    this.settings  = settings;
+    this.journal   = journal;
+    this.transport = transport;
+    this.metrics   = metrics;
+    this.history   = history;
+    val threads    = Math.max(1, TeamCityProperties.getInteger(DELIVERY_WORKERS, DELIVERY_WORKERS_DEFAULT));
+    capacity       = Math.max(1, TeamCityProperties.getInteger(QUEUE_CAPACITY, QUEUE_CAPACITY_DEFAULT));
+    perDestination = TeamCityProperties.getInteger(DESTINATION_LIMIT, DESTINATION_LIMIT_DEFAULT);
+    drainTimeout   = TeamCityProperties.getInteger(DRAIN_TIMEOUT, DRAIN_TIMEOUT_DEFAULT);
+    maxAttempts    = Math.max(1, TeamCityProperties.getInteger(RETRY_MAX_ATTEMPTS, RETRY_MAX_ATTEMPTS_DEFAULT));
+    maxAge         = TeamCityProperties.getLong(RETRY_MAX_AGE, RETRY_MAX_AGE_DEFAULT);
+    retryDelay     = Math.max(1, TeamCityProperties.getInteger(RETRY_DELAY, RETRY_DELAY_DEFAULT));
+    maxRetryDelay  = Math.max(retryDelay, TeamCityProperties.getInteger(RETRY_MAX_DELAY, RETRY_MAX_DELAY_DEFAULT));
+    failuresToOpen = TeamCityProperties.getInteger(BREAKER_FAILURES, BREAKER_FAILURES_DEFAULT);
+    openTime       = TeamCityProperties.getInteger(BREAKER_OPEN_TIME, BREAKER_OPEN_TIME_DEFAULT);
+    workers        = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                            new LinkedBlockingQueue<Runnable>(),
+                                            new ThreadFactoryBuilder().setNameFormat(PLUGIN_TITLE + " delivery %d").
+                                                                       setDaemon(true).
+                                                                       build());
+    retries        = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                                setNameFormat(PLUGIN_TITLE + " retries").
+                                                                setDaemon(true).
+                                                                build());
+    settings.addListener(new WebhooksSettings.Listener() {
+      @Override
+      public void webhooksChanged(@NonNull Set<String> projectIds) {
+        for (val key : signers.keySet()){
+          if (projectIds.contains(key.substring(0, key.indexOf(' ')))) { signers.remove(key); }
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Re-queues jobs journaled before restart, in background so that plugin registration is not blocked.
+   */
+  public void start(){
+    retries.execute(new Runnable() {
+      @Override
+      public void run() {
+        val jobs = journal.restore();
+        if (jobs.isEmpty()) { return; }
+
+        log("Restoring %s undelivered payloads".f(jobs.size()));
+        for (val job : jobs){
+          if (expired(job)) {
+            giveUp(job, "it is older than %s ms".f(maxAge));
+          }
+          else {
+            queued.incrementAndGet();
+            enqueue(job);
+          }
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Queues job for delivery, returns immediately.
+   *
+   * @return false if job was rejected due to queue being full or delivery being shut down
+   */
+  boolean submit(@NonNull WebhookJob job){
+    if (! accepting) {
+      return reject(job, "Delivery is shut down");
+    }
+
+    if ((queued.incrementAndGet() + parked.get()) > capacity) {
+      queued.decrementAndGet();
+      return reject(job, "Delivery queue is full (%s jobs)".f(capacity));
+    }
+
+    journal.append(job);
+    enqueue(job);
+    return true;
+  }
+
+
+  /**
+   * Stops accepting new jobs and waits for queued ones to be delivered, up to "delivery.drainTimeout" ms.
+   * Jobs not delivered remain in the journal and are restored after restart.
+   *
+   * Retries keep running while draining: they wake up destinations held back by rate limits or "Retry-After",
+   * while parked jobs are no longer re-queued once delivery stops accepting.
+   */
+  public void shutdown(){
+    accepting = false;
+    val deadline = System.currentTimeMillis() + drainTimeout;
+
+    try {
+      while ((queued.get() > 0) && (System.currentTimeMillis() < deadline)) {
+        Thread.sleep(50);
+      }
+    }
+    catch (InterruptedException ignored) {
+      Thread.currentThread().interrupt();
+    }
+
+    retries.shutdownNow();
+    workers.shutdownNow();
+
+    if ((queued.get() + parked.get()) > 0) {
+      log("Shut down with %s payloads undelivered, they'll be restored on startup".f(queued.get() + parked.get()));
+    }
+    log("Delivery shut down: %s delivered, %s failed, %s retried, %s rejected".f(
+      delivered.get(), failed.get(), retried.get(), rejected.get()));
+  }
+
+
+  int getQueueDepth(){
+    return queued.get();
+  }
+
+
+  int getCapacity(){
+    return capacity;
+  }
+
+
+  int getRetriesPending(){
+    return parked.get();
+  }
+
+
+  long getDelivered(){
+    return delivered.get();
+  }
+
+
+  long getFailed(){
+    return failed.get();
+  }
+
+
+  long getRetried(){
+    return retried.get();
+  }
+
+
+  long getRejected(){
+    return rejected.get();
+  }
+
+
+  long getSkipped(){
+    return skipped.get();
+  }
+
+
+  long getThrottled(){
+    return throttled.get();
+  }
+
+
+  /**
+   * Retrieves breaker state of receiver of the URL specified, CLOSED if nothing was sent to it yet.
+   */
+  WebhookDestination.BreakerState getBreakerState(@NonNull String url){
+    val destination = destinations.get(WebhookDestination.keyOf(url));
+    return (destination != null ? destination.getBreakerState() : WebhookDestination.BreakerState.CLOSED);
+  }
+
+
+  /**
+   * Retrieves breaker states of all receivers, keyed by destination.
+   */
+  Map<String, WebhookDestination.BreakerState> getBreakerStates(){
+    val result = new TreeMap<String, WebhookDestination.BreakerState>();
+    for (val destination : destinations.values()){
+      result.put(destination.getKey(), destination.getBreakerState());
+    }
+    return result;
+  }
+
+
+  private boolean reject(@NonNull WebhookJob job, @NonNull String reason){
+    rejected.incrementAndGet();
+    error("%s, dropping payload for '%s'".f(reason, job.getUrl()));
+    return false;
+  }
+
+
+  private void enqueue(@NonNull WebhookJob job){
+    val destination = destination(job.getUrl());
+    destination.offer(job, settings.getHostLimit(destination.getHost()));
+    schedule(destination);
+  }
+
+
+  private WebhookDestination destination(@NonNull String url){
+    val key         = WebhookDestination.keyOf(url);
+    val destination = destinations.get(key);
+    if (destination != null) { return destination; }
+
+    val created  = new WebhookDestination(key, WebhookDestination.hostOf(url), perDestination, failuresToOpen, openTime);
+    val existing = destinations.putIfAbsent(key, created);
+    return (existing != null ? existing : created);
+  }
+
+
+  /**
+   * Hands destination's pending jobs to workers, as long as it has free slots and its host's rate limit allows.
+   * A throttled destination is woken up once its next job can be sent.
+   */
+  private void schedule(@NonNull final WebhookDestination destination){
+    // Read on each scheduling, so that limits changed in settings apply right away
+    val limit = settings.getHostLimit(destination.getHost());
+
+    while (true) {
+      WebhookJob next;
+      while ((next = destination.acquireShortCircuited()) != null) {
+        queued.decrementAndGet();
+        shortCircuited(destination, next);
+      }
+
+      while ((next = destination.acquire(limit)) != null) {
+        final WebhookJob job = next;
+        try {
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                val webhook = settings.getWebhook(job.getProjectId(), job.getUrl());
+                if (webhook == null) {
+                  // Removed, or its project was renamed, it's not POST-ed without its signature or compression
+                  history.recordIfExists(job, "Webhook was removed, payload was dropped");
+                  giveUp(job, "its webhook was removed");
+                }
+                else if (destination.allowRequest()) {
+                  val response = postPayload(destination, webhook, job);
+                  destination.requestCompleted((response.getStatus() != 0) && (response.getStatus() < 500));
+                  completed(destination, job, response);
+                }
+                else {
+                  // Breaker opened after the job was acquired
+                  shortCircuited(destination, job);
+                }
+              }
+              finally {
+                destination.release();
+                queued.decrementAndGet();
+                schedule(destination);
+              }
+            }
+          });
+        }
+        catch (RejectedExecutionException e) {
+          // Delivery is shut down, job remains journaled
+          destination.release();
+          queued.decrementAndGet();
+          return;
+        }
+      }
+
+      val delay = destination.claimWakeup(limit);
+      // Token was refilled meanwhile
+      if (delay < 0) { continue; }
+      if (delay > 0) { wakeUp(destination, delay); }
+      return;
+    }
+  }
+
+
+  private void wakeUp(@NonNull final WebhookDestination destination, long delay){
+    throttled.incrementAndGet();
+    try {
+      retries.schedule(new Runnable() {
+        @Override
+        public void run() {
+          destination.wokenUp();
+          schedule(destination);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      // Delivery is shut down, jobs remain journaled
+      destination.wokenUp();
+    }
+  }
+
+
+  /**
+   * Handles job's attempt completed with HTTP response specified (status 0 if there was no response).
+   */
+  private void completed(@NonNull WebhookDestination destination, @NonNull WebhookJob job, @NonNull WebhooksTransport.Response response){
+    val status = response.getStatus();
+    if ((response.getRetryAfter() > 0) && ((status == 429) || (status == 503))) {
+      // Nothing is sent to receiver until "Retry-After" passes, not only this job
+      destination.pause(response.getRetryAfter());
+    }
+
+    if ((status >= 200) && (status < 300)) {
+      delivered.incrementAndGet();
+      journal.done(job);
+      measure(job);
+    }
+    else if (! retryable(status)) {
+      giveUp(job, "receiver responded with %s".f(status));
+    }
+    else if ((job.getAttempt() + 1) >= maxAttempts) {
+      giveUp(job, "it failed %s times".f(maxAttempts));
+    }
+    else if (expired(job)) {
+      giveUp(job, "it is older than %s ms".f(maxAge));
+    }
+    else {
+      retry(job.retry(), response.getRetryAfter());
+    }
+  }
+
+
+  /**
+   * Connection failures and server errors are retried, as well as timeouts and throttling.
+   */
+  private static boolean retryable(int status){
+    return (status == 0) || (status >= 500) || (status == 408) || (status == 429);
+  }
+
+
+  private boolean expired(@NonNull WebhookJob job){
+    return (System.currentTimeMillis() - job.getCreatedAt()) > maxAge;
+  }
+
+
+  private void giveUp(@NonNull WebhookJob job, @NonNull String reason){
+    failed.incrementAndGet();
+    journal.done(job);
+    measure(job);
+    error("Giving up on POST-ing payload to '%s', %s".f(job.getUrl(), reason));
+  }
+
+
+  /**
+   * Fails job of a short-circuited receiver fast: it counts as a failed attempt and is parked with backoff,
+   * not before breaker lets the next probe through, unless it's out of attempts or too old.
+   */
+  private void shortCircuited(@NonNull WebhookDestination destination, @NonNull WebhookJob job){
+    skipped.incrementAndGet();
+    if ((job.getAttempt() + 1) >= maxAttempts) {
+      giveUp(job, "it failed %s times, receiver is short-circuited".f(maxAttempts));
+    }
+    else if (expired(job)) {
+      giveUp(job, "it is older than %s ms, receiver is short-circuited".f(maxAge));
+    }
+    else {
+      val next = job.retry();
+      park(next, Math.max(backoff(next), destination.getOpenTimeLeft()));
+    }
+  }
+
+
+  /**
+   * Schedules job's next attempt after exponential backoff delay: [delay/2, delay), delay = retry.delay * 2^attempt,
+   * but not before receiver's "Retry-After".
+   */
+  private void retry(@NonNull WebhookJob job, long retryAfter){
+    retried.incrementAndGet();
+    park(job, Math.max(backoff(job), retryAfter));
+  }
+
+
+  private long backoff(@NonNull WebhookJob job){
+    val delay  = Math.min(maxRetryDelay, retryDelay << Math.min(job.getAttempt() - 1, 30));
+    val jitter = (long) (random.nextDouble() * (delay / 2));
+    return (delay / 2) + jitter;
+  }
+
+
+  /**
+   * Re-queues job's next attempt after the delay specified. Attempts are journaled, so that "delivery.maxAttempts"
+   * keeps counting them after restart.
+   */
+  private void park(@NonNull final WebhookJob job, long delay){
+    journal.retried(job);
+    parked.incrementAndGet();
+
+    try {
+      retries.schedule(new Runnable() {
+        @Override
+        public void run() {
+          parked.decrementAndGet();
+          if (accepting) {
+            queued.incrementAndGet();
+            enqueue(job);
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      // Delivery is shut down, job remains journaled
+      parked.decrementAndGet();
+    }
+  }
+
+
+  private void measure(@NonNull WebhookJob job){
+    metrics.deliveryCompleted(System.nanoTime() - job.getEnqueuedAt());
+  }
+
+
+  /**
+   * Retrieves signer of the webhook, creating its key when first used or when its secret changes.
+   */
+  private WebhookSigner signer(@NonNull Webhook webhook){
+    val secret = webhook.getOptions().getSecret();
+    if (secret == null) { return null; }
+
+    val key    = webhook.getProjectId() + ' ' + webhook.getUrl();
+    val signer = signers.get(key);
+    if ((signer != null) && signer.getSecret().equals(secret)) { return signer; }
+
+    val created = new WebhookSigner(secret);
+    signers.put(key, created);
+    return created;
+  }
+
+
+  /**
+   * POSTs job's payload to its URL, with current options of its webhook, recording the attempt in webhook's history.
+   *
+   * @return response, with status code 0 if POST failed
+   */
+  private WebhooksTransport.Response postPayload(@NonNull WebhookDestination destination,
+                                                 @NonNull Webhook            webhook,
+                                                 @NonNull WebhookJob         job){
+    val url     = job.getUrl();
+    val started = System.nanoTime();
+    try {
+      val response = transport.post(url, job.getPayload(), webhook.getOptions(), signer(webhook));
+      val latency  = System.nanoTime() - started;
+      metrics.requestCompleted(destination.getKey(), response.getStatus(), latency);
+      history.record(job, response.getStatus(), response.getBody(), latency);
+
+      if (response.isSuccessful()) {
+        debug("Payload POST-ed to '%s'", url);
+      }
+      else {
+        error("POST-ing payload to '%s' - got %s response: %s".f(url, response.getStatus(), response.getBody()));
+      }
+      return response;
+    }
+    catch (Throwable t) {
+      val latency = System.nanoTime() - started;
+      metrics.requestCompleted(destination.getKey(), 0, latency);
+      history.record(job, 0, String.valueOf(t.getMessage()), latency);
+      error("Failed to POST payload to '%s'".f(url), t);
+      return NO_RESPONSE;
+    }
+  }
+}
@@ -0,0 +1,388 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Recent delivery attempts of each project's webhook, so that a misbehaving webhook can be looked at without
+ * grepping server logs.
+ *
+ * Each webhook has a ring buffer of "history.size" fixed-size entries, memory-mapped from a file in plugin's
+ * data directory: recording an attempt is a couple of buffer writes and history survives restarts.
+ * Entries are indexed by build in memory, so that attempts of a build are found without scanning the buffer.
+ * History of a webhook is deleted once it's removed, a webhook added again with the same URL starts a new one.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksHistory {
+
+  private static final int    MAGIC          = 0x57484831; // "WHH1"
+  private static final int    HEADER_SIZE    = 16;
+  private static final int    ENTRY_SIZE     = 256;
+  // Timestamp, build ID, status, latency, payload size, response length
+  private static final int    MAX_RESPONSE   = ENTRY_SIZE - 8 - 8 - 4 - 4 - 4 - 2;
+  private static final String HISTORY_SUFFIX = ".history";
+
+  File                        directory;
+  int                         capacity;
+  // "projectId url" => webhook's ring, rings are opened when first used
+  ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<String, Ring>();
+  // Project ID => URLs of its webhooks, as of the last settings change, guarded by rings
+  Map<String, Set<String>>    urls  = new HashMap<String, Set<String>>();
+
+
+  /**
+   * Single delivery attempt.
+   */
+  @Value
+  static class Entry {
+    long   timestamp;
+    long   buildId;
+    /** HTTP status, 0 if there was no response */
+    int    status;
+    int    latency;
+    int    payloadSize;
+    /** Response body, truncated */
+    String response;
+  }
+
+
+  public WebhooksHistory(@NonNull ServerPaths serverPaths, @NonNull WebhooksCluster cluster, @NonNull final WebhooksSettings settings) {
+    directory = cluster.nodeDirectory(new File(new File(serverPaths.getPluginDataDirectory(), PLUGIN_NAME), "history"));
+    capacity  = Math.max(1, TeamCityProperties.getInteger(HISTORY_SIZE, HISTORY_SIZE_DEFAULT));
+
+    if (! (directory.isDirectory() || directory.mkdirs())) {
+      error("Failed to create history directory '%s'".f(path(directory)));
+    }
+
+    settings.addListener(new WebhooksSettings.Listener() {
+      @Override
+      public void webhooksChanged(@NonNull Set<String> projectIds) {
+        deleteRemoved(settings, projectIds);
+      }
+    });
+    // Webhooks could be removed from settings files while the server was down
+    deleteUndefined(settings);
+  }
+
+
+  /**
+   * Records job's delivery attempt, an entry for each of its builds.
+   */
+  void record(@NonNull WebhookJob job, int status, @NonNull String response, long latencyNanos){
+    record(job, status, response, latencyNanos, true);
+  }
+
+
+  /**
+   * Records job's outcome in webhook's history if it has one, without creating it for a webhook removed meanwhile.
+   */
+  void recordIfExists(@NonNull WebhookJob job, @NonNull String response){
+    record(job, 0, response, 0, false);
+  }
+
+
+  private void record(@NonNull WebhookJob job, int status, @NonNull String response, long latencyNanos, boolean create){
+    try {
+      val ring = ring(job.getProjectId(), job.getUrl(), create);
+      if (ring == null) { return; }
+
+      val timestamp = System.currentTimeMillis();
+      val latency   = (int) Math.min(Integer.MAX_VALUE, latencyNanos / 1000000);
+      val size      = job.getPayload().length();
+      val body      = truncate(response);
+
+      if (job.getBuildIds().length < 1) {
+        ring.add(timestamp, 0, status, latency, size, body);
+      }
+      for (long buildId : job.getBuildIds()){
+        ring.add(timestamp, buildId, status, latency, size, body);
+      }
+    }
+    catch (Throwable t) {
+      error("Failed to record delivery history of '%s'".f(job.getUrl()), t);
+    }
+  }
+
+
+  /**
+   * Retrieves webhook's attempts, newest first.
+   *
+   * @param buildId attempts of this build only, all attempts if 0
+   * @param offset  number of newest attempts to skip
+   * @param limit   maximal number of attempts to retrieve
+   */
+  @NonNull
+  List<Entry> getEntries(@NonNull String projectId, @NonNull String url, long buildId, int offset, int limit){
+    val ring = ring(projectId, url, false);
+    return (ring != null ? ring.entries(buildId, offset, limit) : ImmutableList.<Entry>of());
+  }
+
+
+  /**
+   * Retrieves number of webhook's attempts recorded, of the build specified or all of them if it's 0.
+   */
+  int getCount(@NonNull String projectId, @NonNull String url, long buildId){
+    val ring = ring(projectId, url, false);
+    return (ring != null ? ring.count(buildId) : 0);
+  }
+
+
+  public void close(){
+    for (val ring : rings.values()){
+      ring.force();
+    }
+  }
+
+
+  /**
+   * Retrieves webhook's ring, opening its file if it exists or creating it if asked to.
+   */
+  private Ring ring(@NonNull String projectId, @NonNull String url, boolean create){
+    val key  = projectId + ' ' + url;
+    val ring = rings.get(key);
+    if (ring != null) { return ring; }
+
+    synchronized (rings) {
+      if (rings.containsKey(key)) { return rings.get(key); }
+
+      val file = new File(directory, fileName(key));
+      if ((! create) && (! file.isFile())) { return null; }
+
+      try {
+        val opened = new Ring(file, capacity);
+        rings.put(key, opened);
+        return opened;
+      }
+      catch (IOException e) {
+        error("Failed to open delivery history '%s'".f(path(file)), e);
+        return null;
+      }
+    }
+  }
+
+
+  /**
+   * Releases rings of webhooks removed from projects specified and deletes their files,
+   * costs as much as projects changed have webhooks.
+   */
+  private void deleteRemoved(@NonNull WebhooksSettings settings, @NonNull Set<String> projectIds){
+    synchronized (rings) {
+      for (val projectId : projectIds){
+        val current = ImmutableSet.copyOf(settings.getUrls(projectId));
+        val known   = (current.isEmpty() ? urls.remove(projectId) : urls.put(projectId, current));
+        if (known == null) { continue; }
+
+        for (val url : Sets.difference(known, current)){
+          val key = projectId + ' ' + url;
+          // Mapping is released once the ring is garbage collected
+          rings.remove(key);
+          val file = new File(directory, fileName(key));
+          if (file.isFile() && (! file.delete())) {
+            error("Failed to delete delivery history '%s'".f(path(file)));
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Deletes files of webhooks not defined in any project, once on startup: files are named after webhooks' hashes,
+   * so that's a scan of all webhooks and the whole directory.
+   */
+  private void deleteUndefined(@NonNull WebhooksSettings settings){
+    val defined = new HashSet<String>();
+    synchronized (rings) {
+      for (val projectId : settings.getProjectIds()){
+        val projectUrls = ImmutableSet.copyOf(settings.getUrls(projectId));
+        if (projectUrls.isEmpty()) { continue; }
+
+        urls.put(projectId, projectUrls);
+        for (val url : projectUrls){
+          defined.add(fileName(projectId + ' ' + url));
+        }
+      }
+
+      val names = directory.list();
+      if (names == null) { return; }
+
+      int deleted = 0;
+      for (val name : names){
+        if ((! name.endsWith(HISTORY_SUFFIX)) || defined.contains(name)) { continue; }
+        val file = new File(directory, name);
+        if (file.delete()) {
+          deleted++;
+        }
+        else {
+          error("Failed to delete delivery history '%s'".f(path(file)));
+        }
+      }
+      if (deleted > 0) {
+        log("Deleted delivery history of %s removed webhooks".f(deleted));
+      }
+    }
+  }
+
+
+  private static String fileName(@NonNull String key){
+    return Hashing.sha1().hashString(key, EncodedPayload.UTF8).toString() + HISTORY_SUFFIX;
+  }
+
+
+  /**
+   * Truncates response to fit an entry, not splitting a UTF-8 character.
+   */
+  private static byte[] truncate(@NonNull String response){
+    val bytes = response.getBytes(EncodedPayload.UTF8);
+    if (bytes.length <= MAX_RESPONSE) { return bytes; }
+
+    int length = MAX_RESPONSE;
+    while ((length > 0) && ((bytes[length] & 0xC0) == 0x80)) { length--; }
+    return Arrays.copyOf(bytes, length);
+  }
+
+
+  /**
+   * Webhook's ring buffer: header [magic, capacity, entries written] followed by entries,
+   * entry N is stored in slot N % capacity.
+   */
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Ring {
+    MappedByteBuffer            buffer;
+    int                         capacity;
+    // Build ID => slots of its entries
+    ListMultimap<Long, Integer> slots = ArrayListMultimap.create();
+    @NonFinal long              written;
+
+    Ring(@NonNull File file, int capacity) throws IOException {
+      val raf = new RandomAccessFile(file, "rw");
+      try {
+        this.capacity = capacity;
+        buffer        = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + ((long) capacity * ENTRY_SIZE));
+      }
+      finally {
+        // Mapping remains valid after the file is closed
+        raf.close();
+      }
+
+      if ((buffer.getInt(0) == MAGIC) && (buffer.getInt(4) != capacity)) {
+        log("Delivery history '%s' was written with a different \"history.size\", it is cleared".f(path(file)));
+      }
+
+      if ((buffer.getInt(0) == MAGIC) && (buffer.getInt(4) == capacity)) {
+        written = buffer.getLong(8);
+        for (long j = Math.max(0, written - capacity); j < written; j++){
+          val slot = (int) (j % capacity);
+          slots.put(buffer.getLong(offset(slot) + 8), slot);
+        }
+      }
+      else {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, capacity);
+        buffer.putLong(8, 0);
+      }
+    }
+
+    private static int offset(int slot){
+      return HEADER_SIZE + (slot * ENTRY_SIZE);
+    }
+
+    synchronized void add(long timestamp, long buildId, int status, int latency, int payloadSize, @NonNull byte[] response){
+      val slot   = (int) (written % capacity);
+      val offset = offset(slot);
+      if (written >= capacity) { slots.remove(buffer.getLong(offset + 8), slot); }
+
+      buffer.putLong(offset, timestamp);
+      buffer.putLong(offset + 8, buildId);
+      buffer.putInt(offset + 16, status);
+      buffer.putInt(offset + 20, latency);
+      buffer.putInt(offset + 24, payloadSize);
+      buffer.putShort(offset + 28, (short) response.length);
+      for (int j = 0; j < response.length; j++){
+        buffer.put(offset + 30 + j, response[j]);
+      }
+
+      // Entry is complete before it's counted
+      buffer.putLong(8, ++written);
+      slots.put(buildId, slot);
+    }
+
+    synchronized List<Entry> entries(long buildId, int offset, int limit){
+      // Newest first
+      val newest = new ArrayList<Integer>();
+      if (buildId != 0) {
+        newest.addAll(slots.get(buildId));
+        Collections.sort(newest, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer slot1, Integer slot2) { return Longs.compare(age(slot1), age(slot2)); }
+        });
+      }
+      else {
+        for (long j = written - 1; j >= Math.max(0, written - capacity); j--){
+          newest.add((int) (j % capacity));
+        }
+      }
+
+      val entries = new ArrayList<Entry>();
+      for (int j = Math.max(0, offset); (j < newest.size()) && (entries.size() < limit); j++){
+        entries.add(entry(newest.get(j)));
+      }
+      return entries;
+    }
+
+    synchronized int count(long buildId){
+      return (buildId != 0 ? slots.get(buildId).size() : (int) Math.min(written, capacity));
+    }
+
+    /**
+     * Number of entries written to the ring after the one in the slot specified.
+     */
+    private long age(int slot){
+      return ((((written - 1) % capacity) - slot) + capacity) % capacity;
+    }
+
+    private Entry entry(int slot){
+      val offset   = offset(slot);
+      val response = new byte[buffer.getShort(offset + 28)];
+      for (int j = 0; j < response.length; j++){
+        response[j] = buffer.get(offset + 30 + j);
+      }
+      return new Entry(buffer.getLong(offset),
+                       buffer.getLong(offset + 8),
+                       buffer.getInt(offset + 16),
+                       buffer.getInt(offset + 20),
+                       buffer.getInt(offset + 24),
+                       new String(response, EncodedPayload.UTF8));
+    }
+
+    synchronized void force(){
+      buffer.force();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package io.cloudnative.teamcity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SProject;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Effective webhooks of projects: their own webhooks and webhooks of all their parent projects, by event.
+ *
+ * Effective webhooks are resolved once per project, by walking its parent chain, and cached until webhooks
+ * of the project or one of its parents change, or the project is moved, renamed or removed. Only the projects
+ * affected (changed project and its subprojects) are invalidated, so resolving webhooks of a build
+ * is a couple of map lookups.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksIndex extends BuildServerAdapter implements WebhooksSettings.Listener {
+
+  private static final Map<WebhookEvent, ImmutableList<Webhook>> NONE = Maps.immutableEnumMap(
+                                                                          new EnumMap<WebhookEvent, ImmutableList<Webhook>>(WebhookEvent.class));
+
+  WebhooksSettings                                                     settings;
+  SBuildServer                                                         buildServer;
+  ProjectManager                                                       projectManager;
+  // Project external ID => event => webhooks, own webhooks first
+  ConcurrentMap<String, Map<WebhookEvent, ImmutableList<Webhook>>>    effective = new ConcurrentHashMap<String, Map<WebhookEvent, ImmutableList<Webhook>>>();
+
+
+  public WebhooksIndex(@NonNull WebhooksSettings settings,
+                       @NonNull SBuildServer     buildServer,
+                       @NonNull ProjectManager   projectManager) {
+    this.settings       = settings;
+    this.buildServer    = buildServer;
+    this.projectManager = projectManager;
+  }
+
+
+  public void register(){
+    settings.addListener(this);
+    buildServer.addListener(this);
+  }
+
+
+  /**
+   * Retrieves webhooks of the project and its parents subscribed to the event specified.
+   */
+  @NonNull
+  List<Webhook> getWebhooks(@NonNull String projectId, @NonNull WebhookEvent event){
+    // Projects' own webhooks are not even looked at for events no webhook is subscribed to
+    if (! settings.getEvents().contains(event)) { return ImmutableList.of(); }
+
+    Map<WebhookEvent, ImmutableList<Webhook>> webhooks = effective.get(projectId);
+    if (webhooks == null) { webhooks = resolve(projectId); }
+
+    val eventWebhooks = webhooks.get(event);
+    return (eventWebhooks != null ? eventWebhooks : ImmutableList.<Webhook>of());
+  }
+
+
+  /**
+   * Retrieves webhooks inherited by the project from its parents, all events.
+   */
+  @NonNull
+  List<Webhook> getInheritedWebhooks(@NonNull String projectId){
+    val project = projectManager.findProjectByExternalId(projectId);
+    if (project == null) { return ImmutableList.of(); }
+
+    val inherited = new ArrayList<Webhook>();
+    for (SProject parent = project.getParentProject(); parent != null; parent = parent.getParentProject()){
+      inherited.addAll(settings.getWebhooks(parent.getExternalId()));
+    }
+    return inherited;
+  }
+
+
+  /**
+   * Walks project's parent chain, collecting webhooks of each project by event.
+   * Runs under the same lock as invalidation, so that a result resolved from stale settings is never cached.
+   */
+  private synchronized Map<WebhookEvent, ImmutableList<Webhook>> resolve(@NonNull String projectId){
+    val cached = effective.get(projectId);
+    if (cached != null) { return cached; }
+
+    val project = projectManager.findProjectByExternalId(projectId);
+    if (project == null) {
+      // Not cached, project may be created later
+      return NONE;
+    }
+
+    val builders = new EnumMap<WebhookEvent, ImmutableList.Builder<Webhook>>(WebhookEvent.class);
+    for (SProject p = project; p != null; p = p.getParentProject()){
+      for (val webhook : settings.getWebhooks(p.getExternalId())){
+        for (val event : webhook.getEvents()){
+          if (! builders.containsKey(event)) { builders.put(event, ImmutableList.<Webhook>builder()); }
+          builders.get(event).add(webhook);
+        }
+      }
+    }
+
+    val webhooks = new EnumMap<WebhookEvent, ImmutableList<Webhook>>(WebhookEvent.class);
+    for (val entry : builders.entrySet()){
+      webhooks.put(entry.getKey(), entry.getValue().build());
+    }
+
+    val result = Maps.immutableEnumMap(webhooks);
+    effective.put(projectId, result);
+    return result;
+  }
+
+
+  /**
+   * Invalidates projects specified and all their subprojects.
+   */
+  private synchronized void invalidate(@NonNull Collection<String> projectIds){
+    for (String projectId : projectIds){
+      effective.remove(projectId);
+      val project = projectManager.findProjectByExternalId(projectId);
+      if (project != null) {
+        for (val subproject : project.getProjects()){
+          effective.remove(subproject.getExternalId());
+        }
+      }
+    }
+  }
+
+
+  private synchronized void invalidateAll(){
+    effective.clear();
+  }
+
+
+  @Override
+  public void webhooksChanged(@NonNull Set<String> projectIds) {
+    invalidate(projectIds);
+  }
+
+
+  @Override
+  public void projectMoved(@NonNull SProject project, @NonNull SProject originalParentProject) {
+    invalidate(ImmutableList.of(project.getExternalId()));
+  }
+
+
+  @Override
+  public void projectRemoved(@NonNull String projectId) {
+    // Internal ID is reported, project and its subprojects can't be looked up anymore
+    invalidateAll();
+  }
+
+
+  @Override
+  public void projectRestored(@NonNull String projectId) {
+    invalidateAll();
+  }
+
+
+  /**
+   * Moves project's webhooks to its new external ID, they'd be lost otherwise.
+   */
+  @Override
+  public void projectExternalIdChanged(@NonNull SProject project, @NonNull String oldExternalId, @NonNull String newExternalId) {
+    val changes = new ArrayList<WebhooksSettings.Change>();
+    for (val webhook : settings.getWebhooks(oldExternalId)){
+      changes.add(WebhooksSettings.Change.remove(oldExternalId, webhook.getUrl()));
+      changes.add(WebhooksSettings.Change.add(newExternalId, webhook.getUrl(), webhook.getOptions()));
+    }
+    settings.apply(changes);
+    invalidate(ImmutableList.of(oldExternalId, newExternalId));
+  }
+}
@@ -0,0 +1,394 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Write-ahead journal of queued deliveries, so that payloads not delivered yet survive a server restart.
+ *
+ * Records are appended to "segment-N.log" files in plugin's data directory and fsync-ed in batches,
+ * every "journal.syncInterval" ms. A segment is deleted once all jobs appended to it, and to older segments, are done.
+ * Retries are recorded as well, so that restored jobs keep their attempt count.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksJournal {
+
+  private static final byte   APPENDED       = 'A';
+  private static final byte   RETRIED        = 'R';
+  private static final byte   DONE           = 'D';
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int    MAX_RECORD     = 64 * 1024 * 1024;
+
+  File                     directory;
+  long                     segmentSize;
+  ScheduledExecutorService syncer;
+  // Segment number => number of jobs appended to it that are not done yet
+  SortedMap<Long, Integer> liveJobs    = new TreeMap<Long, Integer>();
+  // Job id => segment number it was appended to
+  Map<Long, Long>          jobSegments = new HashMap<Long, Long>();
+  // Segments up to this one were written before restart
+  long                     lastRestored;
+  @NonFinal boolean        restored;
+  @NonFinal long           segment;
+  @NonFinal long           segmentBytes;
+  @NonFinal FileChannel    channel;
+  @NonFinal OutputStream   out;
+  @NonFinal boolean        dirty;
+
+
+  public WebhooksJournal(@NonNull ServerPaths serverPaths, @NonNull WebhooksCluster cluster) {
+    directory    = cluster.nodeDirectory(new File(new File(serverPaths.getPluginDataDirectory(), PLUGIN_NAME), "journal"));
+    segmentSize  = TeamCityProperties.getInteger(JOURNAL_SEGMENT_SIZE, JOURNAL_SEGMENT_SIZE_DEFAULT);
+    val segments = segments();
+    lastRestored = (segments.isEmpty() ? 0 : segments.last());
+    segment      = lastRestored + 1;
+
+    if (! (directory.isDirectory() || directory.mkdirs())) {
+      error("Failed to create journal directory '%s'".f(path(directory)));
+    }
+
+    val interval = TeamCityProperties.getInteger(JOURNAL_SYNC_INTERVAL, JOURNAL_SYNC_INTERVAL_DEFAULT);
+    syncer       = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                              setNameFormat(PLUGIN_TITLE + " journal").
+                                                              setDaemon(true).
+                                                              build());
+    syncer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() { sync(); }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+
+  /**
+   * Records job queued for delivery.
+   */
+  synchronized void append(@NonNull WebhookJob job){
+    try {
+      write(record(APPENDED, job));
+      jobSegments.put(job.getId(), segment);
+      liveJobs.put(segment, liveJobs.get(segment) + 1);
+      if (segmentBytes >= segmentSize) { roll(); }
+    }
+    catch (IOException e) {
+      error("Failed to journal payload for '%s'".f(job.getUrl()), e);
+    }
+  }
+
+
+  /**
+   * Records job's retry, its attempt is restored after restart.
+   */
+  synchronized void retried(@NonNull WebhookJob job){
+    try {
+      write(record(RETRIED, job));
+      if (segmentBytes >= segmentSize) { roll(); }
+    }
+    catch (IOException e) {
+      error("Failed to journal retry of payload for '%s'".f(job.getUrl()), e);
+    }
+  }
+
+
+  /**
+   * Records job delivered or given up on, it won't be restored after restart.
+   */
+  synchronized void done(@NonNull WebhookJob job){
+    try {
+      write(record(DONE, job));
+      val jobSegment = jobSegments.remove(job.getId());
+      if (jobSegment != null) {
+        liveJobs.put(jobSegment, liveJobs.get(jobSegment) - 1);
+        deleteCompleted();
+      }
+    }
+    catch (IOException e) {
+      error("Failed to journal completion of payload for '%s'".f(job.getUrl()), e);
+    }
+  }
+
+
+  /**
+   * Reads segments written before restart and retrieves jobs that were not done, in the order they were queued.
+   * Should be called once, segments restored are deleted once these jobs are done.
+   */
+  List<WebhookJob> restore(){
+    val pending  = new LinkedHashMap<Long, WebhookJob>();
+    val segments = new TreeMap<Long, Long>(); // Job id => segment
+    val restoredSegments = segments().headSet(lastRestored + 1);
+
+    for (val number : restoredSegments){
+      read(segmentFile(number), number, pending, segments);
+    }
+
+    synchronized (this) {
+      for (val number : restoredSegments){
+        liveJobs.put(number, 0);
+      }
+      for (val jobId : pending.keySet()){
+        val number = segments.get(jobId);
+        jobSegments.put(jobId, number);
+        liveJobs.put(number, liveJobs.get(number) + 1);
+      }
+      restored = true;
+      deleteCompleted();
+    }
+
+    return new ArrayList<WebhookJob>(pending.values());
+  }
+
+
+  /**
+   * Flushes records appended so far and fsync-s them to disk.
+   */
+  void sync(){
+    FileChannel toSync;
+
+    synchronized (this) {
+      if ((! dirty) || (out == null)) { return; }
+      try {
+        out.flush();
+      }
+      catch (IOException e) {
+        error("Failed to flush journal segment %s".f(segment), e);
+        return;
+      }
+      dirty  = false;
+      toSync = channel;
+    }
+
+    // Forcing outside of lock so that appends are not blocked by the disk
+    try {
+      toSync.force(false);
+    }
+    catch (ClosedChannelException ignored) {
+      // Segment was rolled over and synced meanwhile
+    }
+    catch (IOException e) {
+      error("Failed to sync journal segment", e);
+    }
+  }
+
+
+  public void close(){
+    syncer.shutdown();
+    synchronized (this) {
+      sync();
+      closeSegment();
+    }
+  }
+
+
+  private void write(@NonNull byte[] record) throws IOException {
+    if (out == null) {
+      val stream   = new FileOutputStream(segmentFile(segment), true);
+      channel      = stream.getChannel();
+      out          = new BufferedOutputStream(stream, 64 * 1024);
+      segmentBytes = channel.size();
+      if (! liveJobs.containsKey(segment)) { liveJobs.put(segment, 0); }
+    }
+
+    out.write(record);
+    segmentBytes += record.length;
+    dirty         = true;
+  }
+
+
+  private void roll(){
+    sync();
+    closeSegment();
+    segment++;
+  }
+
+
+  private void closeSegment(){
+    if (out == null) { return; }
+    try {
+      out.flush();
+      channel.force(false);
+      out.close();
+    }
+    catch (IOException e) {
+      error("Failed to close journal segment %s".f(segment), e);
+    }
+    out     = null;
+    channel = null;
+    dirty   = false;
+  }
+
+
+  /**
+   * Deletes oldest segments, as long as they have no jobs pending.
+   */
+  private void deleteCompleted(){
+    if (! restored) { return; }
+
+    while ((! liveJobs.isEmpty()) && (liveJobs.firstKey() < segment) && (liveJobs.get(liveJobs.firstKey()) < 1)) {
+      val number = liveJobs.firstKey();
+      val file   = segmentFile(number);
+      if (file.isFile() && (! file.delete())) {
+        error("Failed to delete journal segment '%s'".f(path(file)));
+        return;
+      }
+      liveJobs.remove(number);
+    }
+  }
+
+
+  private SortedSet<Long> segments(){
+    val result = new TreeSet<Long>();
+    val names  = directory.list();
+    if (names == null) { return result; }
+
+    for (val name : names){
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          result.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+        catch (NumberFormatException ignored) {
+          // Not a segment
+        }
+      }
+    }
+    return result;
+  }
+
+
+  private File segmentFile(long number){
+    return new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+  }
+
+
+  /**
+   * Serializes record as [length][type, job id, job details or attempt][CRC32 checksum].
+   */
+  private static byte[] record(byte type, @NonNull WebhookJob job) throws IOException {
+    val body = new ByteArrayOutputStream();
+    val data = new DataOutputStream(body);
+    data.writeByte(type);
+    data.writeLong(job.getId());
+
+    if (type == APPENDED) {
+      data.writeLong(job.getCreatedAt());
+      data.writeUTF(job.getProjectId());
+      data.writeUTF(job.getUrl());
+      val payload = job.getPayload().bytes();
+      data.writeInt(payload.length);
+      data.write(payload);
+      data.writeInt(job.getBuildIds().length);
+      for (long buildId : job.getBuildIds()){
+        data.writeLong(buildId);
+      }
+    }
+    else if (type == RETRIED) {
+      data.writeInt(job.getAttempt());
+    }
+
+    data.flush();
+    val bytes  = body.toByteArray();
+    val record = new ByteArrayOutputStream(bytes.length + 12);
+    val out    = new DataOutputStream(record);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.writeLong(checksum(bytes));
+    out.flush();
+    return record.toByteArray();
+  }
+
+
+  /**
+   * Reads records of the segment specified, stopping at the first incomplete or corrupted one (torn write).
+   */
+  @SuppressWarnings("NestedAssignment")
+  private static void read(@NonNull File file,
+                           long number,
+                           @NonNull Map<Long, WebhookJob> pending,
+                           @NonNull Map<Long, Long> segments){
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+      while (true) {
+        int length;
+        try { length = in.readInt(); }
+        catch (EOFException ignored) { return; }
+
+        if ((length < 9) || (length > MAX_RECORD)) {
+          error("Journal segment '%s' is corrupted, ignoring the rest of it".f(path(file)));
+          return;
+        }
+
+        val bytes = new byte[length];
+        in.readFully(bytes);
+        if (in.readLong() != checksum(bytes)) {
+          error("Journal segment '%s' has a corrupted record, ignoring the rest of it".f(path(file)));
+          return;
+        }
+
+        val data  = new DataInputStream(new ByteArrayInputStream(bytes));
+        val type  = data.readByte();
+        val jobId = data.readLong();
+
+        if (type == APPENDED) {
+          val createdAt = data.readLong();
+          val projectId = data.readUTF();
+          val url       = data.readUTF();
+          val payload   = new byte[data.readInt()];
+          data.readFully(payload);
+          val buildIds  = new long[data.readInt()];
+          for (int j = 0; j < buildIds.length; j++){
+            buildIds[j] = data.readLong();
+          }
+          pending.put(jobId, WebhookJob.restored(jobId, projectId, url, EncodedPayload.of(payload), createdAt, 0, buildIds));
+          segments.put(jobId, number);
+        }
+        else if (type == RETRIED) {
+          // Job keeps its place in the queue
+          val job = pending.get(jobId);
+          if (job != null) { pending.put(jobId, job.restored(data.readInt())); }
+        }
+        else if (type == DONE) {
+          pending.remove(jobId);
+          segments.remove(jobId);
+        }
+      }
+    }
+    catch (EOFException ignored) {
+      error("Journal segment '%s' ends with incomplete record, ignoring it".f(path(file)));
+    }
+    catch (IOException e) {
+      error("Failed to read journal segment '%s'".f(path(file)), e);
+    }
+    finally {
+      if (in != null) {
+        try { in.close(); }
+        catch (IOException ignored) {}
+      }
+    }
+  }
+
+
+  private static long checksum(@NonNull byte[] bytes){
+    val crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+}
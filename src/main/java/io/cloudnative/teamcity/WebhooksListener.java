@@ -1,283 +1,325 @@
 package io.cloudnative.teamcity;
 
-import static io.cloudnative.teamcity.WebhookPayload.*;
-import static io.cloudnative.teamcity.WebhooksConstants.*;
 import static io.cloudnative.teamcity.WebhooksUtils.*;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.hash.Hashing;
 import jetbrains.buildServer.serverSide.*;
-import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
-import jetbrains.buildServer.serverSide.artifacts.BuildArtifact;
-import jetbrains.buildServer.serverSide.artifacts.BuildArtifacts;
-import jetbrains.buildServer.serverSide.artifacts.BuildArtifactsViewMode; 
-import jetbrains.buildServer.vcs.VcsException;
-import jodd.http.HttpRequest;
-import jodd.http.net.SocketHttpConnection;
+import jetbrains.buildServer.serverSide.problems.BuildProblemInfo;
+import jetbrains.buildServer.users.User;
 import lombok.*;
 import lombok.experimental.ExtensionMethod;
 import lombok.experimental.FieldDefaults;
-import java.io.File;
-import java.util.*;
-
-
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Dispatches build lifecycle events to webhooks subscribed to them, defined in build's project or its parents.
+ *
+ * The listener isn't registered in TeamCity by itself: a small adapter forwarding a single event is registered
+ * for each {@link WebhookEvent} some webhook is subscribed to, and removed once no webhook is subscribed to it,
+ * so events nobody is interested in add nothing to TeamCity's listener path.
+ *
+ * In a multi-node TeamCity every node receives each event, the node claiming it for a webhook through
+ * {@link WebhooksCluster} delivers it to that webhook.
+ */
 @ExtensionMethod(LombokExtensions.class)
 @AllArgsConstructor
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhooksListener extends BuildServerAdapter {
 
-  @NonNull WebhooksSettings settings;
-  @NonNull SBuildServer     buildServer;
-  @NonNull ServerPaths      serverPaths;
-  @NonNull ArtifactsGuard   artifactsGuard;
+  // Queued builds have no build ID yet
+  private static final long[] NO_BUILDS = new long[0];
+
+  @NonNull WebhooksSettings                       settings;
+  @NonNull WebhooksIndex                          index;
+  @NonNull SBuildServer                           buildServer;
+  @NonNull WebhooksPayloadBuilder                 payloadBuilder;
+  @NonNull WebhooksDelivery                       delivery;
+  @NonNull WebhooksBatcher                        batcher;
+  @NonNull WebhooksCluster                        cluster;
+  @NonNull WebhooksMetrics                        metrics;
+  Map<WebhookEvent, BuildServerAdapter>           adapters = new EnumMap<WebhookEvent, BuildServerAdapter>(WebhookEvent.class);
 
 
   public void register(){
-    buildServer.addListener(this);
+    settings.addListener(new WebhooksSettings.Listener() {
+      @Override
+      public void webhooksChanged(@NonNull Set<String> projectIds) {
+        updateSubscriptions();
+      }
+    });
+    updateSubscriptions();
   }
 
 
-  @Override
-  public void buildFinished(@NonNull SRunningBuild build) {
-    long time = System.currentTimeMillis();
-    try {
-      Gson gson    = new Gson();
-      
-      String payload = gson.toJson(buildPayload(build));
-      
-      gson.fromJson(payload, Map.class); // Sanity check of JSON generated
-      log(String.format("Build '%s/#%s' finished, payload is '%s'",
-        build.getFullName(), 
-        build.getBuildNumber(), 
-        payload));
-
-      for (String url : settings.getUrls(build.getProjectExternalId())){
-        postPayload(url, payload);
+  /**
+   * Registers adapters of events webhooks are subscribed to and removes adapters of other events.
+   */
+  synchronized void updateSubscriptions(){
+    val events = settings.getEvents();
+    for (WebhookEvent event : WebhookEvent.values()){
+      if (events.contains(event) && (! adapters.containsKey(event))) {
+        val adapter = adapter(event);
+        adapters.put(event, adapter);
+        buildServer.addListener(adapter);
+      }
+      else if ((! events.contains(event)) && adapters.containsKey(event)) {
+        buildServer.removeListener(adapters.remove(event));
       }
-
-      log(String.format("Operation finished in %s ms",
-        System.currentTimeMillis() - time));
-    }
-    catch (Throwable t) {
-      error(String.format("Failed to listen on buildFinished() of '%s' #%s",
-        build.getFullName(), 
-        build.getBuildNumber()), 
-        t);
     }
   }
 
 
-  @SuppressWarnings({"FeatureEnvy" , "ConstantConditions"})
-  //@SneakyThrows(VcsException.class)
-  private WebhookPayload buildPayload(@NonNull SBuild build){
-    
-    String buildStatus = buildServer.findBuildInstanceById(build.getBuildId()).
-      getStatusDescriptor().getText();
-    String buildStatusLink = null;
-    String text = "Build completed";
-    String themeColor = null;
-    String buildSummary = null;
-    String imgUrl = null;
-    //List<Fact> facts = new ArrayList<Fact>();
-    
-    Section section = Section.builder().
-      facts(new ArrayList<Fact>()).
-      build();
-
-    //%serverUrl%/viewLog.html?buildTypeId=%buildTypeId%&buildId=%buildId%
-    String buildPageUrl = String.format("%s/viewLog.html?buildTypeId=%s&buildId=%s",
-      buildServer.getRootUrl(),
-      build.getBuildType().getExternalId(),
-      build.getBuildId());
-    
-    if (build.getStatusDescriptor().isSuccessful()) {
-      buildStatusLink = "[" + buildStatus + "](" + buildPageUrl + ")";
-      section.facts.add(Fact.builder().
-        name("Status").
-        value(buildStatusLink).
-        build());
-
-      themeColor = "229911";
-    } else {
-      buildStatus = "Failed";
-      buildStatusLink = "[" + buildStatus + "](" + buildPageUrl + ")";
-      section.facts.add(Fact.builder().
-        name("Status").
-        value(buildStatusLink).
-        build());
-      String buildDetails = build.getStatusDescriptor().getText();
-      section.facts.add(Fact.builder().
-        name("Message").
-        value(build.getStatusDescriptor().getText()).
-        build());
-      
-      themeColor = "AA0000";
-    }
+  @Override
+  public void buildTypeAddedToQueue(@NonNull SQueuedBuild queuedBuild) {
+    notifyQueued(queuedBuild, WebhookEvent.BUILD_QUEUED);
+  }
 
-    if(build.getArtifacts(BuildArtifactsViewMode.VIEW_DEFAULT).isAvailable()) {
-      section.facts.add(Fact.builder().
-        name("Artifacts").
-        value("[View]("+buildPageUrl+"&tab=artifacts)").
-        build());
-    }
-    
-    ArrayList<Section> sections = new ArrayList<Section>();
-    sections.add(section);
-    return WebhookPayload.of(build.getFullName(),
-                             text,
-                             themeColor,
-                             sections);
+
+  @Override
+  public void buildRemovedFromQueue(@NonNull SQueuedBuild queuedBuild, User user, String comment) {
+    notifyQueued(queuedBuild, WebhookEvent.BUILD_DEQUEUED);
   }
 
 
-  /**
-   * POSTs payload to the URL specified
-   */
-  private void postPayload(@NonNull String url, @NonNull String payload){
-    try {
-      val request  = HttpRequest.post(url).body(payload).open();
-      // http://jodd.org/doc/http.html#sockethttpconnection
-      ((SocketHttpConnection) request.httpConnection()).getSocket().setSoTimeout(POST_TIMEOUT);
-      val response = request.send();
+  @Override
+  public void buildStarted(@NonNull SRunningBuild build) {
+    notifyBuild(build, WebhookEvent.BUILD_STARTED, "");
+  }
 
-      if (response.statusCode() == 200) {
-        log("Payload POST-ed to '%s'".f(url));
-      }
-      else {
-        error("POST-ing payload to '%s' - got %s response: %s".f(url, response.statusCode(), response));
-      }
-    }
-    catch (Throwable t) {
-      error("Failed to POST payload to '%s'".f(url), t);
-    }
+
+  @Override
+  public void changesLoaded(@NonNull SRunningBuild build) {
+    notifyBuild(build, WebhookEvent.CHANGES_LOADED, "");
+  }
+
+
+  @Override
+  public void buildProblemsChanged(@NonNull SBuild build, List<BuildProblemInfo> before, List<BuildProblemInfo> after) {
+    // Problems change more than once per build, problems before and after tell changes apart on all nodes
+    notifyBuild(build, WebhookEvent.BUILD_PROBLEMS_CHANGED, cluster.isClustered() ? problemsChange(before, after) : "");
+  }
+
+
+  @Override
+  public void buildInterrupted(@NonNull SRunningBuild build) {
+    notifyBuild(build, WebhookEvent.BUILD_INTERRUPTED, "");
+  }
+
+
+  @Override
+  public void buildFinished(@NonNull SRunningBuild build) {
+    notifyBuild(build, WebhookEvent.BUILD_FINISHED, "");
   }
 
 
   /**
-   * Retrieves map of build's artifacts (archived in TeamCity and uploaded to S3):
-   * {'artifact.jar' => {'archive' => 'http://teamcity/artifact/url', 's3' => 'https://s3-artifact/url'}}
+   * Hands build over to payload builder's thread, returns immediately.
    *
-   * https://devnet.jetbrains.com/message/5257486
-   * https://confluence.jetbrains.com/display/TCD8/Patterns+For+Accessing+Build+Artifacts
+   * @param occurrence tells apart occurrences of an event happening more than once per build, empty otherwise
    */
-  @SuppressWarnings({"ConstantConditions", "CollectionDeclaredAsConcreteClass", "FeatureEnvy"})
-  private Map<String,Map<String, String>> artifacts(@NonNull SBuild build){
-
-    val buildArtifacts = buildArtifacts(build);
-    if (buildArtifacts.isEmpty()) {
-      return Collections.emptyMap();
+  private void notifyBuild(@NonNull final SBuild build, @NonNull final WebhookEvent event, @NonNull final String occurrence) {
+    if (index.getWebhooks(build.getProjectExternalId(), event).isEmpty()) {
+      return;
     }
 
-    val rootUrl   = buildServer.getRootUrl();
-    @SuppressWarnings("TypeMayBeWeakened")
-    val artifacts = new HashMap<String, Map<String, String>>();
-
-    if (notEmpty(rootUrl)) {
-      for (val artifact : buildArtifacts){
-        val artifactName = artifact.getName();
-        if (".teamcity".equals(artifactName) || isEmpty(artifactName)) { continue; }
-
-        // http://127.0.0.1:8080/repository/download/Echo_Build/37/echo-service-0.0.1-SNAPSHOT.jar
-        final String url = "%s/repository/download/%s/%s/%s".f(rootUrl,
-                                                               build.getBuildType().getExternalId(),
-                                                               build.getBuildNumber(),
-                                                               artifactName);
-        artifacts.put(artifactName, map("archive", url));
+    payloadBuilder.submit(new Runnable() {
+      @Override
+      public void run() {
+        notifyWebhooks(build, event, occurrence);
       }
-    }
-
-    return Collections.unmodifiableMap(addS3Artifacts(artifacts, build));
+    });
   }
 
 
-  /**
-   * Retrieves current build's artifacts.
-   */
-  @SuppressWarnings("ConstantConditions")
-  private Collection<File> buildArtifacts(@NonNull SBuild build){
-    val artifactsDirectory = build.getArtifactsDirectory();
-    if ((artifactsDirectory == null) || (! artifactsDirectory.isDirectory())) {
-      return Collections.emptyList();
+  private void notifyQueued(@NonNull final SQueuedBuild queuedBuild, @NonNull final WebhookEvent event) {
+    val buildType = queuedBuild.getBuildType();
+    val webhooks  = index.getWebhooks(buildType.getProjectExternalId(), event);
+    if (webhooks.isEmpty()) {
+      return;
     }
 
+    payloadBuilder.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // Filters apply to builds, queued builds are sent to all webhooks subscribed
+          val claimed = cluster.claim(event, queuedBuild.getItemId(), webhooks);
+          if (claimed.isEmpty()) { return; }
+
+          val payload = Suppliers.memoize(new Supplier<EncodedPayload>() {
+            @Override
+            public EncodedPayload get() {
+              return encoded(payloadBuilder.queuedPayload(queuedBuild, event));
+            }
+          });
+          send(buildType.getExternalId(), NO_BUILDS, claimed, payload, payloadBuilder.templateValues(queuedBuild, event, payload));
+        }
+        catch (Throwable t) {
+          error("Failed to listen on %s() of '%s'".f(event.getKey(), buildType.getFullName()), t);
+        }
+      }
+    });
+  }
+
+
+  private void notifyWebhooks(@NonNull final SBuild build, @NonNull final WebhookEvent event, @NonNull String occurrence) {
+    long time = System.currentTimeMillis();
     try {
-      artifactsGuard.lockReading(artifactsDirectory);
-      File[] files = artifactsDirectory.listFiles();
-      return (files == null ? Collections.<File>emptyList() : Arrays.asList(files));
+      // Filters are evaluated before any payload work, builds no hook is interested in cost no I/O
+      val projectId = build.getProjectExternalId();
+      val matching  = new ArrayList<Webhook>();
+      for (val webhook : index.getWebhooks(projectId, event)){
+        if (webhook.getFilter().matches(build)) { matching.add(webhook); }
+      }
+      if (matching.isEmpty()) { return; }
+
+      val webhooks = cluster.claim(event, build.getBuildId() + occurrence, matching);
+      if (webhooks.isEmpty()) { return; }
+
+      // Built only if a webhook without template or a template referencing it needs it
+      val payload = Suppliers.memoize(new Supplier<EncodedPayload>() {
+        @Override
+        public EncodedPayload get() {
+          val encoded = encoded(payloadBuilder.buildPayload(build, event));
+          // Payload is only turned into a String if debug is enabled
+          debug("Build '%s/#%s' %s, payload is '%s'", build.getFullName(), build.getBuildNumber(), event.getKey(), encoded);
+          return encoded;
+        }
+      });
+
+      send(build.getBuildTypeExternalId(), new long[]{ build.getBuildId() }, webhooks, payload, payloadBuilder.templateValues(build, event, payload));
+
+      debug("Operation finished in %s ms", System.currentTimeMillis() - time);
     }
-    finally {
-      artifactsGuard.unlockReading(artifactsDirectory);
+    catch (Throwable t) {
+      error(String.format("Failed to listen on %s() of '%s' #%s",
+        event.getKey(),
+        build.getFullName(),
+        build.getBuildNumber()),
+        t);
     }
   }
 
 
   /**
-   * Updates map of build's artifacts with S3 URLs:
-   * {'artifact.jar' => {'s3' => 'https://s3-artifact/url'}}
+   * Identifies a change of build problems by IDs of problems before and after it.
    */
-  @SuppressWarnings("FeatureEnvy")
-  private Map<String,Map<String, String>> addS3Artifacts(@NonNull Map<String, Map<String, String>> artifacts,
-                                                         @NonNull @SuppressWarnings("TypeMayBeWeakened") SBuild build){
+  private static String problemsChange(List<BuildProblemInfo> before, List<BuildProblemInfo> after){
+    val ids = problemIds(before) + " " + problemIds(after);
+    return "-" + Hashing.sha1().hashString(ids, EncodedPayload.UTF8);
+  }
 
-    val s3SettingsFile = new File(serverPaths.getConfigDir(), S3_SETTINGS_FILE);
 
-    if (! s3SettingsFile.isFile()) {
-      return artifacts;
+  private static List<Integer> problemIds(List<BuildProblemInfo> problems){
+    val ids = new ArrayList<Integer>();
+    if (problems != null) {
+      for (val problem : problems){
+        ids.add(problem.getId());
+      }
     }
+    Collections.sort(ids);
+    return ids;
+  }
 
-    val s3Settings   = readJsonFile(s3SettingsFile);
-    val bucketName   = ((String) s3Settings.get("artifactBucket"));
-    val awsAccessKey = ((String) s3Settings.get("awsAccessKey"));
-    val awsSecretKey = ((String) s3Settings.get("awsSecretKey"));
 
-    if (isEmpty(bucketName)) {
-      return artifacts;
-    }
+  /**
+   * Encodes payload once, all deliveries share the same bytes.
+   */
+  private EncodedPayload encoded(@NonNull WebhookPayload payload){
+    val encoded = EncodedPayload.encode(payload);
+    metrics.payloadEncoded(encoded.length());
+    return encoded;
+  }
 
-    try {
-      AmazonS3 s3Client = isEmpty(awsAccessKey, awsSecretKey) ?
-        new AmazonS3Client() :
-        new AmazonS3Client(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
 
-      if (! s3Client.doesBucketExist(bucketName)) {
-        return artifacts;
+  /**
+   * Hands payloads over to webhooks, jobs belong to projects webhooks are defined in.
+   * Each template is rendered once, for all webhooks using it.
+   */
+  private void send(@NonNull String                   buildTypeId,
+                    @NonNull long[]                   buildIds,
+                    @NonNull List<Webhook>            webhooks,
+                    @NonNull Supplier<EncodedPayload> defaultPayload,
+                    @NonNull WebhookTemplate.Values   values){
+    val rendered = new IdentityHashMap<WebhookTemplate, EncodedPayload>();
+
+    for (val webhook : webhooks){
+      final EncodedPayload payload;
+      if (webhook.getTemplate() == null) {
+        payload = defaultPayload.get();
       }
-
-      // "Echo::Build/15/"
-      final String prefix = "%s/%s/".f(build.getFullName().replace(" :: ", "::"), build.getBuildNumber());
-      val objects = s3Client.listObjects(bucketName, prefix).getObjectSummaries();
-
-      if (objects.isEmpty()) {
-        return artifacts;
+      else if (rendered.containsKey(webhook.getTemplate())) {
+        payload = rendered.get(webhook.getTemplate());
+      }
+      else {
+        payload = webhook.getTemplate().render(values);
+        rendered.put(webhook.getTemplate(), payload);
       }
 
-      val region = s3Client.getBucketLocation(bucketName);
-
-      for (val summary : objects){
-        val artifactKey = summary.getKey();
-        if (isEmpty(artifactKey) || artifactKey.endsWith("/build.json")) { continue; }
-
-        final String artifactName = artifactKey.split("/").last();
-        if (isEmpty(artifactName)) { continue; }
-
-        // https://s3-eu-west-1.amazonaws.com/evgenyg-bakery/Echo%3A%3ABuild/45/echo-service-0.0.1-SNAPSHOT.jar
-        final String url = "https://s3-%s.amazonaws.com/%s/%s".f(region, bucketName, artifactKey);
-
-        if (artifacts.containsKey(artifactName)) {
-          artifacts.get(artifactName).put("s3", url);
-        }
-        else {
-          artifacts.put(artifactName, map("s3", url));
-        }
+      if (webhook.getOptions().isBatched()) {
+        batcher.add(webhook, buildTypeId, buildIds, payload);
+      }
+      else {
+        delivery.submit(WebhookJob.of(webhook.getProjectId(), webhook.getUrl(), payload, buildIds));
       }
     }
-    catch (Throwable t) {
-      error("Failed to list objects in S3 bucket '%s'".f(bucketName), t);
-    }
+  }
+
 
-    return artifacts;
+  /**
+   * Creates an adapter forwarding a single event to this listener.
+   */
+  private BuildServerAdapter adapter(@NonNull WebhookEvent event){
+    switch (event) {
+      case BUILD_QUEUED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildTypeAddedToQueue(@NonNull SQueuedBuild queuedBuild) { WebhooksListener.this.buildTypeAddedToQueue(queuedBuild); }
+        };
+      case BUILD_DEQUEUED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildRemovedFromQueue(@NonNull SQueuedBuild queuedBuild, User user, String comment) {
+            WebhooksListener.this.buildRemovedFromQueue(queuedBuild, user, comment);
+          }
+        };
+      case BUILD_STARTED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildStarted(@NonNull SRunningBuild build) { WebhooksListener.this.buildStarted(build); }
+        };
+      case CHANGES_LOADED:
+        return new BuildServerAdapter() {
+          @Override
+          public void changesLoaded(@NonNull SRunningBuild build) { WebhooksListener.this.changesLoaded(build); }
+        };
+      case BUILD_PROBLEMS_CHANGED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildProblemsChanged(@NonNull SBuild build, List<BuildProblemInfo> before, List<BuildProblemInfo> after) {
+            WebhooksListener.this.buildProblemsChanged(build, before, after);
+          }
+        };
+      case BUILD_INTERRUPTED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildInterrupted(@NonNull SRunningBuild build) { WebhooksListener.this.buildInterrupted(build); }
+        };
+      case BUILD_FINISHED:
+        return new BuildServerAdapter() {
+          @Override
+          public void buildFinished(@NonNull SRunningBuild build) { WebhooksListener.this.buildFinished(build); }
+        };
+      default:
+        throw new IllegalArgumentException("Unknown event " + event);
+    }
   }
 }
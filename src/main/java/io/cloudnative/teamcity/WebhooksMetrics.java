@@ -0,0 +1,144 @@
+package io.cloudnative.teamcity;
+
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Delivery pipeline measurements, rendered by {@link WebhooksMetricsController}.
+ * Durations are recorded in nanoseconds, sizes in bytes.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksMetrics {
+
+  // Response status codes are counted in arrays indexed by status, 0 stands for no response
+  static final int MAX_STATUS = 600;
+
+  Histogram                               payloadTime      = new Histogram();
+  Histogram                               payloadSize      = new Histogram();
+  Histogram                               deliveryLatency  = new Histogram();
+  ConcurrentMap<String, Histogram>        stageTimes       = new ConcurrentHashMap<String, Histogram>();
+  ConcurrentMap<String, AtomicLong>       stageTimeouts    = new ConcurrentHashMap<String, AtomicLong>();
+  ConcurrentMap<String, Histogram>        requestTimes     = new ConcurrentHashMap<String, Histogram>();
+  ConcurrentMap<String, AtomicLongArray>  responses        = new ConcurrentHashMap<String, AtomicLongArray>();
+  AtomicLong                              payloadsRejected = new AtomicLong();
+
+
+  /**
+   * Records time of building build's payload, all stages included.
+   */
+  void payloadBuilt(long nanos){
+    payloadTime.record(nanos);
+  }
+
+
+  void payloadEncoded(int bytes){
+    payloadSize.record(bytes);
+  }
+
+
+  /**
+   * Records an event dropped since payload builder's queue was full or it was shut down.
+   */
+  void payloadRejected(){
+    payloadsRejected.incrementAndGet();
+  }
+
+
+  void stageCompleted(@NonNull String stage, long nanos){
+    histogram(stageTimes, stage).record(nanos);
+  }
+
+
+  void stageTimedOut(@NonNull String stage){
+    val counter = stageTimeouts.get(stage);
+    if (counter != null) {
+      counter.incrementAndGet();
+      return;
+    }
+
+    val existing = stageTimeouts.putIfAbsent(stage, new AtomicLong(1));
+    if (existing != null) { existing.incrementAndGet(); }
+  }
+
+
+  /**
+   * Records a POST to destination specified, 0 status stands for no response.
+   */
+  void requestCompleted(@NonNull String destination, int status, long nanos){
+    histogram(requestTimes, destination).record(nanos);
+
+    AtomicLongArray counts = responses.get(destination);
+    if (counts == null) {
+      val existing = responses.putIfAbsent(destination, counts = new AtomicLongArray(MAX_STATUS));
+      if (existing != null) { counts = existing; }
+    }
+    counts.incrementAndGet(((status > 0) && (status < MAX_STATUS)) ? status : 0);
+  }
+
+
+  /**
+   * Records time from queueing a job to its final outcome, retries included.
+   */
+  void deliveryCompleted(long nanos){
+    deliveryLatency.record(nanos);
+  }
+
+
+  Histogram getPayloadTime(){
+    return payloadTime;
+  }
+
+
+  Histogram getPayloadSize(){
+    return payloadSize;
+  }
+
+
+  Histogram getDeliveryLatency(){
+    return deliveryLatency;
+  }
+
+
+  long getPayloadsRejected(){
+    return payloadsRejected.get();
+  }
+
+
+  Map<String, Histogram> getStageTimes(){
+    return new TreeMap<String, Histogram>(stageTimes);
+  }
+
+
+  Map<String, AtomicLong> getStageTimeouts(){
+    return new TreeMap<String, AtomicLong>(stageTimeouts);
+  }
+
+
+  Map<String, Histogram> getRequestTimes(){
+    return new TreeMap<String, Histogram>(requestTimes);
+  }
+
+
+  Map<String, AtomicLongArray> getResponses(){
+    return new TreeMap<String, AtomicLongArray>(responses);
+  }
+
+
+  private static Histogram histogram(@NonNull ConcurrentMap<String, Histogram> histograms, @NonNull String key){
+    val histogram = histograms.get(key);
+    if (histogram != null) { return histogram; }
+
+    val created  = new Histogram();
+    val existing = histograms.putIfAbsent(key, created);
+    return (existing != null ? existing : created);
+  }
+}
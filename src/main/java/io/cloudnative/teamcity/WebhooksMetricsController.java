@@ -0,0 +1,178 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.util.SessionUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Renders delivery metrics in Prometheus text format:
+ * https://prometheus.io/docs/instrumenting/exposition_formats/
+ *
+ * Metrics name receiver hosts of all projects, they're available to users allowed to view usage statistics
+ * or to change server settings.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@AllArgsConstructor
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksMetricsController extends BaseController {
+
+  private static final double   NANOS     = 1e9;
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  @NonNull WebControllerManager   webManager;
+  @NonNull WebhooksMetrics        metrics;
+  @NonNull WebhooksDelivery       delivery;
+  @NonNull WebhooksTransport      transport;
+  @NonNull WebhooksCluster        cluster;
+
+  public void register(){
+    webManager.registerController("/" + METRICS_PATH, this);
+  }
+
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest  request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+    val user = SessionUser.getUser(request);
+    if ((user == null) || (! (user.isPermissionGrantedGlobally(Permission.VIEW_USAGE_STATISTICS) ||
+                              user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)))) {
+      throw new RuntimeException("Webhooks metrics require permission to view usage statistics or to change server settings");
+    }
+
+    val out = new StringBuilder(4096);
+
+    gauge(out, "webhooks_queue_depth", "Payloads waiting for delivery.", delivery.getQueueDepth());
+    gauge(out, "webhooks_retries_pending", "Payloads waiting for their next delivery attempt.", delivery.getRetriesPending());
+    counter(out, "webhooks_delivered_total", "Payloads delivered.", delivery.getDelivered());
+    counter(out, "webhooks_failed_total", "Payloads given up on.", delivery.getFailed());
+    counter(out, "webhooks_retried_total", "Delivery attempts retried.", delivery.getRetried());
+    counter(out, "webhooks_rejected_total", "Payloads dropped due to full queue.", delivery.getRejected());
+    counter(out, "webhooks_short_circuited_total", "Delivery attempts held back by open breakers.", delivery.getSkipped());
+    counter(out, "webhooks_throttled_total", "Times deliveries were held back by host rate limits or Retry-After.", delivery.getThrottled());
+
+    type(out, "webhooks_breaker_open", "Breaker state per destination: 0 - closed, 1 - open, 0.5 - half-open.", "gauge");
+    for (val breaker : delivery.getBreakerStates().entrySet()){
+      val state = breaker.getValue();
+      sample(out, "webhooks_breaker_open", label("destination", breaker.getKey()),
+             (state == WebhookDestination.BreakerState.OPEN      ? 1 :
+              state == WebhookDestination.BreakerState.HALF_OPEN ? 0.5 : 0));
+    }
+
+    summary(out, "webhooks_delivery_seconds", "Time from queueing a payload to its delivery or giving up on it.");
+    summaryValues(out, "webhooks_delivery_seconds", "", metrics.getDeliveryLatency(), NANOS);
+    summary(out, "webhooks_payload_seconds", "Time of building a payload.");
+    summaryValues(out, "webhooks_payload_seconds", "", metrics.getPayloadTime(), NANOS);
+    summary(out, "webhooks_payload_bytes", "Size of encoded payloads.");
+    summaryValues(out, "webhooks_payload_bytes", "", metrics.getPayloadSize(), 1);
+    counter(out, "webhooks_payload_rejected_total", "Events dropped due to full payload builder queue.", metrics.getPayloadsRejected());
+
+    summary(out, "webhooks_stage_seconds", "Time of payload stages.");
+    for (val stage : metrics.getStageTimes().entrySet()){
+      summaryValues(out, "webhooks_stage_seconds", label("stage", stage.getKey()), stage.getValue(), NANOS);
+    }
+
+    type(out, "webhooks_stage_timeouts_total", "Payload stages that missed their deadline.", "counter");
+    for (val stage : metrics.getStageTimeouts().entrySet()){
+      sample(out, "webhooks_stage_timeouts_total", label("stage", stage.getKey()), stage.getValue().get());
+    }
+
+    summary(out, "webhooks_request_seconds", "Time of POST requests, per destination.");
+    for (val destination : metrics.getRequestTimes().entrySet()){
+      summaryValues(out, "webhooks_request_seconds", label("destination", destination.getKey()), destination.getValue(), NANOS);
+    }
+
+    type(out, "webhooks_responses_total", "POST responses per destination and status code, 0 for no response.", "counter");
+    for (val destination : metrics.getResponses().entrySet()){
+      val counts = destination.getValue();
+      for (int status = 0; status < counts.length(); status++){
+        val count = counts.get(status);
+        if (count > 0) {
+          sample(out, "webhooks_responses_total",
+                 label("destination", destination.getKey()) + "," + label("code", String.valueOf(status)),
+                 count);
+        }
+      }
+    }
+
+    counter(out, "webhooks_http_requests_total", "POST requests sent.", transport.getRequests());
+    counter(out, "webhooks_http_connections_opened_total", "Connections opened by the pool.", transport.getConnectionsOpened());
+    gauge(out, "webhooks_http_connections_leased", "Pooled connections in use.", transport.getConnectionsLeased());
+    gauge(out, "webhooks_http_connections_available", "Pooled connections idle.", transport.getConnectionsAvailable());
+
+    if (cluster.isClustered()) {
+      counter(out, "webhooks_cluster_claimed_total", "Events claimed for delivery by this node.", cluster.getClaimed());
+      counter(out, "webhooks_cluster_claims_lost_total", "Events claimed by other nodes.", cluster.getClaimsLost());
+    }
+
+    response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    response.getWriter().write(out.toString());
+    return null;
+  }
+
+
+  private static void gauge(@NonNull StringBuilder out, @NonNull String name, @NonNull String help, double value){
+    type(out, name, help, "gauge");
+    sample(out, name, "", value);
+  }
+
+
+  private static void counter(@NonNull StringBuilder out, @NonNull String name, @NonNull String help, double value){
+    type(out, name, help, "counter");
+    sample(out, name, "", value);
+  }
+
+
+  private static void summary(@NonNull StringBuilder out, @NonNull String name, @NonNull String help){
+    type(out, name, help, "summary");
+  }
+
+
+  private static void summaryValues(@NonNull StringBuilder out,
+                                    @NonNull String name,
+                                    @NonNull String labels,
+                                    @NonNull Histogram histogram,
+                                    double scale){
+    val prefix = (labels.isEmpty() ? "" : labels + ",");
+    for (double quantile : QUANTILES){
+      sample(out, name, prefix + label("quantile", String.valueOf(quantile)), histogram.percentile(quantile) / scale);
+    }
+    sample(out, name + "_sum", labels, histogram.getSum() / scale);
+    sample(out, name + "_count", labels, histogram.getCount());
+  }
+
+
+  private static void type(@NonNull StringBuilder out, @NonNull String name, @NonNull String help, @NonNull String type){
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+
+  private static void sample(@NonNull StringBuilder out, @NonNull String name, @NonNull String labels, double value){
+    out.append(name);
+    if (! labels.isEmpty()) { out.append('{').append(labels).append('}'); }
+    out.append(' ');
+    if (value == Math.rint(value)) { out.append((long) value); }
+    else                           { out.append(value); }
+    out.append('\n');
+  }
+
+
+  private static String label(@NonNull String name, @NonNull String value){
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+  }
+}
@@ -0,0 +1,442 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhookPayload.*;
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.artifacts.ArtifactsGuard;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifactsViewMode;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+
+/**
+ * Builds payloads off TeamCity's event dispatching thread, as a pipeline of {@link WebhookPayloadStage}s:
+ * build status, TeamCity artifacts and S3 artifacts.
+ *
+ * Stages run in parallel, each given "payload.stageTimeout" ms. Facts of a stage missing its deadline
+ * are left out of the payload, which is sent with facts of other stages.
+ *
+ * Up to "payload.queueCapacity" events wait for a builder thread, extra ones are dropped and counted.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksPayloadBuilder {
+
+  SBuildServer                      buildServer;
+  ArtifactsGuard                    artifactsGuard;
+  WebhooksS3                        s3;
+  WebhooksUrls                      urls;
+  List<WebhookPayloadStage>         stages;
+  ThreadPoolExecutor                builders;
+  ExecutorService                   stageWorkers;
+  long                              stageTimeout;
+  long                              drainTimeout;
+  WebhooksMetrics                   metrics;
+  Cache<Long, List<String>>         artifactNames;
+  int                               maxArtifacts;
+  Pattern                           artifactsGlob;
+
+
+  public WebhooksPayloadBuilder(@NonNull SBuildServer   buildServer,
+                                @NonNull ArtifactsGuard artifactsGuard,
+                                @NonNull WebhooksS3     s3,
+                                @NonNull WebhooksUrls   urls,
+                                @NonNull final WebhooksMetrics metrics) {
+    this.buildServer    = buildServer;
+    this.artifactsGuard = artifactsGuard;
+    this.s3             = s3;
+    this.urls           = urls;
+    this.metrics        = metrics;
+    stages              = ImmutableList.of(new StatusStage(), new ArtifactsStage(), new S3Stage());
+    stageTimeout        = TeamCityProperties.getInteger(STAGE_TIMEOUT, STAGE_TIMEOUT_DEFAULT);
+    drainTimeout        = TeamCityProperties.getInteger(DRAIN_TIMEOUT, DRAIN_TIMEOUT_DEFAULT);
+    maxArtifacts        = TeamCityProperties.getInteger(ARTIFACTS_MAX_ENTRIES, ARTIFACTS_MAX_ENTRIES_DEFAULT);
+    artifactsGlob       = globPattern(TeamCityProperties.getProperty(ARTIFACTS_GLOB, ARTIFACTS_GLOB_DEFAULT));
+    artifactNames       = CacheBuilder.newBuilder().
+                                       maximumSize(ARTIFACTS_CACHE_SIZE).
+                                       expireAfterAccess(1, TimeUnit.HOURS).
+                                       build();
+
+    val threads  = Math.max(1, TeamCityProperties.getInteger(PAYLOAD_THREADS, PAYLOAD_THREADS_DEFAULT));
+    val capacity = Math.max(1, TeamCityProperties.getInteger(PAYLOAD_QUEUE_CAPACITY, PAYLOAD_QUEUE_CAPACITY_DEFAULT));
+    builders     = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(capacity),
+                                          new ThreadFactoryBuilder().setNameFormat(PLUGIN_TITLE + " payload %d").
+                                                                     setDaemon(true).
+                                                                     build(),
+                                          new RejectedExecutionHandler() {
+                                            @Override
+                                            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                                              metrics.payloadRejected();
+                                              error(executor.isShutdown() ?
+                                                      "Payload builder is shut down, dropping event" :
+                                                      "Payload builder queue is full (%s events), dropping event".f(capacity));
+                                            }
+                                          });
+    stageWorkers = Executors.newFixedThreadPool(threads * stages.size(), new ThreadFactoryBuilder().
+                                                                          setNameFormat(PLUGIN_TITLE + " payload stage %d").
+                                                                          setDaemon(true).
+                                                                          build());
+  }
+
+
+  /**
+   * Runs task building and delivering a payload on payload builder's thread, drops it if the queue is full.
+   */
+  void submit(@NonNull Runnable task){
+    builders.execute(task);
+  }
+
+
+  /**
+   * Builds build's payload, blocks until all stages complete or miss their deadline.
+   */
+  WebhookPayload buildPayload(@NonNull SBuild build){
+    return buildPayload(build, WebhookEvent.BUILD_FINISHED);
+  }
+
+
+  /**
+   * Builds payload of build's event, blocks until all stages complete or miss their deadline.
+   */
+  @SuppressWarnings("FeatureEnvy")
+  WebhookPayload buildPayload(@NonNull final SBuild build, @NonNull WebhookEvent event){
+
+    final String buildPageUrl = urls.buildPage(build);
+
+    val started = System.currentTimeMillis();
+    val nanos   = System.nanoTime();
+    val futures = new ArrayList<Future<List<Fact>>>(stages.size());
+
+    for (final WebhookPayloadStage stage : stages){
+      futures.add(stageWorkers.submit(new Callable<List<Fact>>() {
+        @Override
+        public List<Fact> call() throws Exception {
+          val stageStarted = System.nanoTime();
+          val facts        = stage.facts(build, buildPageUrl);
+          metrics.stageCompleted(stage.getName(), System.nanoTime() - stageStarted);
+          return facts;
+        }
+      }));
+    }
+
+    Section section = Section.builder().
+      facts(new ArrayList<Fact>()).
+      build();
+
+    for (int j = 0; j < stages.size(); j++){
+      val stage  = stages.get(j);
+      val future = futures.get(j);
+      try {
+        section.facts.addAll(future.get(Math.max(0, started + stageTimeout - System.currentTimeMillis()),
+                                        TimeUnit.MILLISECONDS));
+      }
+      catch (TimeoutException ignored) {
+        future.cancel(true);
+        metrics.stageTimedOut(stage.getName());
+        error("Payload stage '%s' of '%s' #%s missed its %s ms deadline, skipping it".f(
+          stage.getName(), build.getFullName(), build.getBuildNumber(), stageTimeout));
+      }
+      catch (ExecutionException e) {
+        error("Payload stage '%s' of '%s' #%s failed, skipping it".f(
+          stage.getName(), build.getFullName(), build.getBuildNumber()), e.getCause());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+
+    metrics.payloadBuilt(System.nanoTime() - nanos);
+
+    ArrayList<Section> sections = new ArrayList<Section>();
+    sections.add(section);
+    return WebhookPayload.of(build.getFullName(),
+                             event.getSummary(),
+                             build.getStatusDescriptor().isSuccessful() ? "229911" : "AA0000",
+                             sections);
+  }
+
+
+  /**
+   * Template values of build's event, default payload is only built if a template references it.
+   */
+  WebhookTemplate.Values templateValues(@NonNull final SBuild build,
+                                        @NonNull final WebhookEvent event,
+                                        @NonNull final Supplier<EncodedPayload> payload){
+    return new WebhookTemplate.Values() {
+      @NonNull
+      @Override
+      @SuppressWarnings("ConstantConditions")
+      public String get(@NonNull WebhookTemplate.Field field) {
+        switch (field) {
+          case NAME          : return build.getFullName();
+          case NUMBER        : return build.getBuildNumber();
+          case ID            : return String.valueOf(build.getBuildId());
+          case STATUS        : return (build.getStatusDescriptor().isSuccessful() ? "success" : "failure");
+          case STATUS_TEXT   : return build.getStatusDescriptor().getText().or("");
+          case BUILD_TYPE_ID : return build.getBuildTypeExternalId();
+          case PROJECT_ID    : return build.getProjectExternalId();
+          case BRANCH        : return (build.getBranch() == null ? "" : build.getBranch().getDisplayName());
+          case URL           : return urls.buildPage(build);
+          case EVENT         : return event.getKey();
+          default            : throw new IllegalArgumentException("Unsupported field " + field);
+        }
+      }
+
+      @NonNull
+      @Override
+      public EncodedPayload payload() { return payload.get(); }
+    };
+  }
+
+
+  /**
+   * Template values of queued build's event, fields of a build not started yet are empty.
+   */
+  WebhookTemplate.Values templateValues(@NonNull final SQueuedBuild queuedBuild,
+                                        @NonNull final WebhookEvent event,
+                                        @NonNull final Supplier<EncodedPayload> payload){
+    final SBuildType buildType = queuedBuild.getBuildType();
+    return new WebhookTemplate.Values() {
+      @NonNull
+      @Override
+      public String get(@NonNull WebhookTemplate.Field field) {
+        switch (field) {
+          case NAME          : return buildType.getFullName();
+          case ID            : return queuedBuild.getItemId();
+          case BUILD_TYPE_ID : return buildType.getExternalId();
+          case PROJECT_ID    : return buildType.getProjectExternalId();
+          case URL           : return urls.buildTypePage(buildType);
+          case EVENT         : return event.getKey();
+          default            : return "";
+        }
+      }
+
+      @NonNull
+      @Override
+      public EncodedPayload payload() { return payload.get(); }
+    };
+  }
+
+
+  /**
+   * Builds payload of queued build's event, no stages are run since there's no build yet.
+   */
+  WebhookPayload queuedPayload(@NonNull SQueuedBuild queuedBuild, @NonNull WebhookEvent event){
+    val buildType = queuedBuild.getBuildType();
+    val facts     = new ArrayList<Fact>();
+    facts.add(Fact.builder().
+      name("Build configuration").
+      value("[" + buildType.getFullName() + "](" + urls.buildTypePage(buildType) + ")").
+      build());
+
+    val sections = new ArrayList<Section>();
+    sections.add(Section.builder().facts(facts).build());
+    return WebhookPayload.of(buildType.getFullName(), event.getSummary(), "999999", sections);
+  }
+
+
+  /**
+   * Stops accepting events and waits up to "delivery.drainTimeout" ms for queued ones to be handed over to delivery.
+   */
+  public void shutdown(){
+    builders.shutdown();
+    try {
+      if (! builders.awaitTermination(drainTimeout, TimeUnit.MILLISECONDS)) {
+        error("Payload builder shut down with %s events not built, they're dropped".f(builders.shutdownNow().size()));
+      }
+    }
+    catch (InterruptedException ignored) {
+      error("Payload builder shut down with %s events not built, they're dropped".f(builders.shutdownNow().size()));
+      Thread.currentThread().interrupt();
+    }
+    stageWorkers.shutdownNow();
+  }
+
+
+  /**
+   * "Status" fact linking to the build page and, for failed builds, "Message" fact.
+   */
+  private class StatusStage implements WebhookPayloadStage {
+
+    @Override
+    public String getName() { return "status"; }
+
+    @Override
+    @SuppressWarnings("ConstantConditions")
+    public List<Fact> facts(@NonNull SBuild build, @NonNull String buildPageUrl) {
+      val facts = new ArrayList<Fact>();
+
+      if (build.getStatusDescriptor().isSuccessful()) {
+        String buildStatus = buildServer.findBuildInstanceById(build.getBuildId()).
+          getStatusDescriptor().getText();
+        facts.add(Fact.builder().
+          name("Status").
+          value("[" + buildStatus + "](" + buildPageUrl + ")").
+          build());
+      } else {
+        facts.add(Fact.builder().
+          name("Status").
+          value("[Failed](" + buildPageUrl + ")").
+          build());
+        facts.add(Fact.builder().
+          name("Message").
+          value(build.getStatusDescriptor().getText()).
+          build());
+      }
+
+      return facts;
+    }
+  }
+
+
+  /**
+   * "Artifacts" fact linking to build's artifacts tab and to its top-level artifacts archived in TeamCity.
+   */
+  private class ArtifactsStage implements WebhookPayloadStage {
+
+    @Override
+    public String getName() { return "artifacts"; }
+
+    @Override
+    public List<Fact> facts(@NonNull SBuild build, @NonNull String buildPageUrl) throws ExecutionException {
+      if (! build.getArtifacts(BuildArtifactsViewMode.VIEW_DEFAULT).isAvailable()) {
+        return Collections.emptyList();
+      }
+
+      val value = new StringBuilder("[View](").append(buildPageUrl).append("&tab=artifacts)");
+      val links = links(urls.artifacts(build, buildArtifacts(build)));
+      if (links.length() > 0) {
+        value.append(": ").append(links);
+      }
+
+      return ImmutableList.of(Fact.builder().
+        name("Artifacts").
+        value(value.toString()).
+        build());
+    }
+  }
+
+
+  /**
+   * "S3" fact linking to build's artifacts uploaded to S3.
+   */
+  private class S3Stage implements WebhookPayloadStage {
+
+    @Override
+    public String getName() { return "s3"; }
+
+    @Override
+    public List<Fact> facts(@NonNull SBuild build, @NonNull String buildPageUrl) {
+      // "Echo::Build/15/"
+      final String prefix = WebhooksUrls.append(build.getFullName().replace(" :: ", "::"), "/", build.getBuildNumber(), "/");
+      val links = links(s3.artifacts(prefix));
+
+      return (links.length() < 1 ?
+        Collections.<Fact>emptyList() :
+        ImmutableList.of(Fact.builder().
+          name("S3").
+          value(links).
+          build()));
+    }
+  }
+
+
+  /**
+   * Formats artifacts as comma-separated Markdown links: "[artifact.jar](http://artifact/url), ..."
+   */
+  private static String links(@NonNull Map<String, String> artifacts){
+    val links = new StringBuilder();
+    for (val artifact : artifacts.entrySet()){
+      if (links.length() > 0) { links.append(", "); }
+      links.append('[').append(artifact.getKey()).append("](").append(artifact.getValue()).append(')');
+    }
+    return links.toString();
+  }
+
+
+  /**
+   * Retrieves names of current build's top-level artifacts matching "artifacts.glob", up to "artifacts.maxEntries" of them.
+   * Names of finished builds are cached, so that repeated payloads don't scan the disk again. Running builds are
+   * still publishing artifacts, they're scanned every time so that the finished build's payload lists all of them.
+   *
+   * https://confluence.jetbrains.com/display/TCD8/Patterns+For+Accessing+Build+Artifacts
+   */
+  private List<String> buildArtifacts(@NonNull final SBuild build) throws ExecutionException {
+    if (! build.isFinished()) {
+      return scanArtifacts(build);
+    }
+
+    return artifactNames.get(build.getBuildId(), new Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        return scanArtifacts(build);
+      }
+    });
+  }
+
+
+  @SuppressWarnings("ConstantConditions")
+  private List<String> scanArtifacts(@NonNull SBuild build){
+    val artifactsDirectory = build.getArtifactsDirectory();
+    if ((artifactsDirectory == null) || (! artifactsDirectory.isDirectory())) {
+      return Collections.emptyList();
+    }
+
+    final List<String> names = new ArrayList<String>();
+
+    try {
+      artifactsGuard.lockReading(artifactsDirectory);
+      // File.list() reads all names before filtering them, there's no way to stop reading a directory part way
+      // before Java 7. Filter collects names instead of accepting them, so that no File[] of all artifacts is created,
+      // and stops matching names once "artifacts.maxEntries" of them are collected.
+      artifactsDirectory.list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          if (names.size() >= maxArtifacts) { throw new EnoughArtifacts(); }
+          if ((! ".teamcity".equals(name)) && notEmpty(name) && artifactsGlob.matcher(name).matches()) {
+            names.add(name);
+          }
+          return false;
+        }
+      });
+    }
+    catch (EnoughArtifacts ignored) {
+      // Remaining names are not matched
+    }
+    finally {
+      artifactsGuard.unlockReading(artifactsDirectory);
+    }
+
+    Collections.sort(names);
+    return Collections.unmodifiableList(names);
+  }
+
+
+  /**
+   * Stops artifacts filter once enough names are collected, has no stack trace.
+   */
+  private static class EnoughArtifacts extends RuntimeException {
+    @Override
+    public synchronized Throwable fillInStackTrace() { return this; }
+  }
+}
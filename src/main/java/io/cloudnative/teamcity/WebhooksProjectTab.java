@@ -1,6 +1,7 @@
 package io.cloudnative.teamcity;
 
 import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Ordering;
 import jetbrains.buildServer.serverSide.ProjectManager;
@@ -17,7 +18,13 @@ import lombok.val;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import javax.servlet.http.HttpServletRequest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 
 @ExtensionMethod(LombokExtensions.class)
@@ -26,14 +33,23 @@ public class WebhooksProjectTab extends ProjectTab {
 
   PluginDescriptor pluginDescriptor;
   WebhooksSettings settings;
+  WebhooksDelivery delivery;
+  WebhooksIndex    index;
+  WebhooksHistory  history;
 
   public WebhooksProjectTab(@NotNull PagePlaces pagePlaces,
                             @NotNull ProjectManager projectManager,
                             @NotNull PluginDescriptor pluginDescriptor,
-                            @NotNull WebhooksSettings settings) {
+                            @NotNull WebhooksSettings settings,
+                            @NotNull WebhooksDelivery delivery,
+                            @NotNull WebhooksIndex    index,
+                            @NotNull WebhooksHistory  history) {
     super(PLUGIN_NAME, PLUGIN_TITLE, pagePlaces, projectManager);
     this.pluginDescriptor = pluginDescriptor;
     this.settings         = settings;
+    this.delivery         = delivery;
+    this.index            = index;
+    this.history          = history;
   }
 
 
@@ -43,11 +59,115 @@ public class WebhooksProjectTab extends ProjectTab {
                             @NotNull  SProject project,
                             @Nullable SUser user){
     val projectId = project.getExternalId();
-    model.putAll(ImmutableMap.of(
-      "projectId", projectId,
-      "canEdit",   (user != null) && user.getPermissionsGrantedForProject(projectId).contains(Permission.EDIT_PROJECT),
-      "urls",      Ordering.natural().immutableSortedCopy(settings.getUrls(projectId)),
-      "action",    CONTROLLER_PATH));
+    val urls      = Ordering.natural().immutableSortedCopy(settings.getUrls(projectId));
+    val breakers  = new HashMap<String, String>();
+    for (val url : urls){
+      val state = delivery.getBreakerState(url);
+      if (state != WebhookDestination.BreakerState.CLOSED) { breakers.put(url, state.name().toLowerCase().replace('_', '-')); }
+    }
+
+    val options = new HashMap<String, String>();
+    for (val webhook : settings.getWebhooks(projectId)){
+      if (! webhook.getOptions().isDefault()) { options.put(webhook.getUrl(), webhook.getOptions().toString()); }
+    }
+
+    val inherited = inherited(projectId);
+
+    // History of a single webhook, if asked for
+    val historyUrl = request.getParameter("history");
+    if (notEmpty(historyUrl) && urls.contains(historyUrl)) {
+      model.put("history", history(projectId, historyUrl, request));
+    }
+
+    model.putAll(ImmutableMap.<String, Object>builder().
+      put("projectId",        projectId).
+      put("canEdit",          (user != null) && user.getPermissionsGrantedForProject(projectId).contains(Permission.EDIT_PROJECT)).
+      put("canEditHosts",     (user != null) && user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)).
+      put("urls",             urls).
+      put("options",          options).
+      put("breakers",         breakers).
+      put("inherited",        inherited).
+      put("hosts",            hosts(urls, inherited)).
+      put("action",           CONTROLLER_PATH).
+      put("redeliveryAction", REDELIVERY_PATH).
+      build());
+  }
+
+
+  /**
+   * Page of webhook's delivery history, newest attempts first, of a single build if "historyBuild" is specified.
+   */
+  private Map<String, Object> history(@NotNull String projectId, @NotNull String url, @NotNull HttpServletRequest request){
+    val buildId = parseLong(request.getParameter("historyBuild"));
+    val count   = history.getCount(projectId, url, buildId);
+    val pages   = Math.max(1, (count + HISTORY_PAGE_SIZE - 1) / HISTORY_PAGE_SIZE);
+    val page    = (int) Math.min(pages, Math.max(1, parseLong(request.getParameter("historyPage"))));
+    val format  = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    val entries = new ArrayList<Map<String, Object>>();
+    for (val entry : history.getEntries(projectId, url, buildId, (page - 1) * HISTORY_PAGE_SIZE, HISTORY_PAGE_SIZE)){
+      entries.add(ImmutableMap.<String, Object>builder().
+        put("time",        format.format(new Date(entry.getTimestamp()))).
+        put("buildId",     entry.getBuildId()).
+        put("status",      entry.getStatus()).
+        put("successful",  (entry.getStatus() >= 200) && (entry.getStatus() < 300)).
+        put("latency",     entry.getLatency()).
+        put("payloadSize", entry.getPayloadSize()).
+        put("response",    entry.getResponse()).
+        build());
+    }
+
+    return ImmutableMap.<String, Object>builder().
+      put("url",     url).
+      put("buildId", (buildId > 0 ? String.valueOf(buildId) : "")).
+      put("page",    page).
+      put("pages",   pages).
+      put("count",   count).
+      put("entries", entries).
+      build();
+  }
+
+
+  private static long parseLong(String s){
+    try {
+      return (isEmpty(s) ? 0 : Math.max(0, Long.parseLong(s.trim())));
+    }
+    catch (NumberFormatException ignored) {
+      return 0;
+    }
+  }
+
+
+  /**
+   * Receiver hosts of project's own and inherited webhooks and their limits, as JSON, empty if host has none.
+   */
+  private Map<String, String> hosts(@NotNull List<String> urls, @NotNull List<Map<String, String>> inherited){
+    val hostUrls = new ArrayList<String>(urls);
+    for (val webhook : inherited){
+      hostUrls.add(webhook.get("url"));
+    }
+
+    val hosts = new TreeMap<String, String>();
+    for (val url : hostUrls){
+      val host  = WebhookDestination.hostOf(url);
+      val limit = settings.getHostLimit(host);
+      hosts.put(host, limit.equals(WebhookHostLimit.NONE) ? "" : limit.toJson());
+    }
+    return hosts;
+  }
+
+
+  /**
+   * Webhooks inherited from parent projects, as maps since JSP can only access public classes.
+   */
+  private List<Map<String, String>> inherited(@NotNull String projectId){
+    val inherited = new ArrayList<Map<String, String>>();
+    for (val webhook : index.getInheritedWebhooks(projectId)){
+      inherited.add(ImmutableMap.of("url",       webhook.getUrl(),
+                                    "projectId", webhook.getProjectId(),
+                                    "options",   webhook.getOptions().isDefault() ? "" : webhook.getOptions().toString()));
+    }
+    return inherited;
   }
 
 
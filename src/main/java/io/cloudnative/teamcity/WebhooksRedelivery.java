@@ -0,0 +1,245 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Sends payloads of past finished builds to a webhook again, e.g. after receiver's outage: builds of a build ID range,
+ * or builds whose deliveries {@link WebhooksHistory} recorded within a time range. Payloads are rebuilt, they are not stored.
+ * History doesn't record events, so builds are replayed as {@link WebhookEvent#BUILD_FINISHED} to webhooks subscribed to it.
+ *
+ * Builds are replayed one by one on a single background thread, no more than "redelivery.rate" builds per second
+ * and only while delivery queue is less than half full, so that replaying thousands of builds overwhelms neither
+ * TeamCity with building payloads nor the receiver with requests (host limits apply to redeliveries as well).
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksRedelivery {
+
+  private static final long         QUEUE_POLL_INTERVAL = 100;
+  private static final WebhookEvent REPLAYED_EVENT      = WebhookEvent.BUILD_FINISHED;
+
+  SBuildServer             buildServer;
+  ProjectManager           projectManager;
+  WebhooksSettings         settings;
+  WebhooksHistory          history;
+  WebhooksPayloadBuilder   payloadBuilder;
+  WebhooksDelivery         delivery;
+  WebhooksBatcher          batcher;
+  WebhooksMetrics          metrics;
+  ExecutorService          replays;
+  long                     interval;
+  int                      maxBuilds;
+  AtomicInteger            pending = new AtomicInteger();
+  @NonFinal volatile boolean stopped;
+
+
+  public WebhooksRedelivery(@NonNull SBuildServer           buildServer,
+                            @NonNull ProjectManager         projectManager,
+                            @NonNull WebhooksSettings       settings,
+                            @NonNull WebhooksHistory        history,
+                            @NonNull WebhooksPayloadBuilder payloadBuilder,
+                            @NonNull WebhooksDelivery       delivery,
+                            @NonNull WebhooksBatcher        batcher,
+                            @NonNull WebhooksMetrics        metrics) {
+    this.buildServer    = buildServer;
+    this.projectManager = projectManager;
+    this.settings       = settings;
+    this.history        = history;
+    this.payloadBuilder = payloadBuilder;
+    this.delivery       = delivery;
+    this.batcher        = batcher;
+    this.metrics        = metrics;
+    interval            = 1000 / Math.max(1, TeamCityProperties.getInteger(REDELIVERY_RATE, REDELIVERY_RATE_DEFAULT));
+    maxBuilds           = Math.max(1, TeamCityProperties.getInteger(REDELIVERY_MAX_BUILDS, REDELIVERY_MAX_BUILDS_DEFAULT));
+    replays             = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().
+                                                           setNameFormat(PLUGIN_TITLE + " redelivery").
+                                                           setDaemon(true).
+                                                           build());
+  }
+
+
+  /**
+   * Queues redelivery of builds with IDs in the range specified, inclusive.
+   *
+   * @return number of build IDs queued, builds not found or not matching webhook are skipped when replayed
+   */
+  int redeliverBuilds(@NonNull String projectId, @NonNull String url, long fromBuildId, long toBuildId){
+    if ((fromBuildId < 1) || (toBuildId < fromBuildId)) {
+      throw new RuntimeException("Invalid build range %s - %s".f(fromBuildId, toBuildId));
+    }
+    if ((toBuildId - fromBuildId) >= maxBuilds) {
+      throw new RuntimeException("Build range %s - %s is larger than %s builds".f(fromBuildId, toBuildId, maxBuilds));
+    }
+
+    val buildIds = new TreeSet<Long>();
+    for (long buildId = fromBuildId; buildId <= toBuildId; buildId++){
+      buildIds.add(buildId);
+    }
+    return redeliver(webhook(projectId, url), buildIds);
+  }
+
+
+  /**
+   * Queues redelivery of builds delivered, successfully or not, to the webhook within the time range specified.
+   *
+   * @return number of builds queued
+   */
+  int redeliverPeriod(@NonNull String projectId, @NonNull String url, long from, long to){
+    if (to < from) {
+      throw new RuntimeException("Invalid time range %s - %s".f(from, to));
+    }
+
+    val webhook  = webhook(projectId, url);
+    val buildIds = new TreeSet<Long>();
+    for (val entry : history.getEntries(projectId, url, 0, 0, Integer.MAX_VALUE)){
+      if ((entry.getBuildId() > 0) && (entry.getTimestamp() >= from) && (entry.getTimestamp() <= to)) {
+        buildIds.add(entry.getBuildId());
+      }
+    }
+
+    if (buildIds.size() > maxBuilds) {
+      throw new RuntimeException("Time range has %s builds, more than %s".f(buildIds.size(), maxBuilds));
+    }
+    return redeliver(webhook, buildIds);
+  }
+
+
+  int getPending(){
+    return pending.get();
+  }
+
+
+  public void shutdown(){
+    stopped = true;
+    replays.shutdownNow();
+    if (pending.get() > 0) {
+      log("Redelivery shut down with %s builds not replayed".f(pending.get()));
+    }
+  }
+
+
+  private Webhook webhook(@NonNull String projectId, @NonNull String url){
+    for (val webhook : settings.getWebhooks(projectId)){
+      if (! webhook.getUrl().equals(url)) { continue; }
+      if (! webhook.getEvents().contains(REPLAYED_EVENT)) {
+        throw new RuntimeException("Webhook '%s' is not subscribed to %s(), it can't be redelivered".f(url, REPLAYED_EVENT.getKey()));
+      }
+      return webhook;
+    }
+    throw new RuntimeException("Project '%s' has no webhook '%s'".f(projectId, url));
+  }
+
+
+  private int redeliver(@NonNull final Webhook webhook, @NonNull final Collection<Long> buildIds){
+    if (stopped) {
+      throw new RuntimeException("Redelivery is shut down");
+    }
+
+    pending.addAndGet(buildIds.size());
+    replays.execute(new Runnable() {
+      @Override
+      public void run() {
+        log("Redelivering %s builds to '%s'".f(buildIds.size(), webhook.getUrl()));
+        int replayed = 0;
+        try {
+          for (long buildId : buildIds){
+            if (stopped) { return; }
+            pending.decrementAndGet();
+            if (replay(webhook, buildId)) {
+              replayed++;
+              Thread.sleep(interval);
+            }
+          }
+        }
+        catch (InterruptedException ignored) {
+          Thread.currentThread().interrupt();
+        }
+        finally {
+          log("Redelivered %s builds to '%s'".f(replayed, webhook.getUrl()));
+        }
+      }
+    });
+    return buildIds.size();
+  }
+
+
+  /**
+   * Hands payload of the build over to delivery once its queue has room.
+   *
+   * @return false if build is not found or is not notified to the webhook
+   */
+  private boolean replay(@NonNull Webhook webhook, long buildId) throws InterruptedException {
+    val build = buildServer.findBuildInstanceById(buildId);
+    if ((build == null) || (! build.isFinished()) || (! notified(webhook, build))) {
+      return false;
+    }
+
+    while ((! stopped) && (delivery.getQueueDepth() >= (delivery.getCapacity() / 2))) {
+      Thread.sleep(QUEUE_POLL_INTERVAL);
+    }
+
+    try {
+      val event   = REPLAYED_EVENT;
+      val payload = Suppliers.memoize(new Supplier<EncodedPayload>() {
+        @Override
+        public EncodedPayload get() {
+          val encoded = EncodedPayload.encode(payloadBuilder.buildPayload(build, event));
+          metrics.payloadEncoded(encoded.length());
+          return encoded;
+        }
+      });
+
+      final EncodedPayload encoded = (webhook.getTemplate() == null ?
+                                        payload.get() :
+                                        webhook.getTemplate().render(payloadBuilder.templateValues(build, event, payload)));
+      if (webhook.getOptions().isBatched()) {
+        batcher.add(webhook, build.getBuildTypeExternalId(), new long[]{ buildId }, encoded);
+      }
+      else {
+        delivery.submit(WebhookJob.of(webhook.getProjectId(), webhook.getUrl(), encoded, buildId));
+      }
+      return true;
+    }
+    catch (Throwable t) {
+      error("Failed to redeliver build %s to '%s'".f(buildId, webhook.getUrl()), t);
+      return false;
+    }
+  }
+
+
+  /**
+   * Determines if the build is notified to the webhook: it belongs to webhook's project or its subprojects
+   * and matches webhook's filter.
+   */
+  private boolean notified(@NonNull Webhook webhook, @NonNull SBuild build){
+    for (SProject project = projectManager.findProjectByExternalId(build.getProjectExternalId());
+         project != null;
+         project = project.getParentProject()){
+      if (project.getExternalId().equals(webhook.getProjectId())) {
+        return webhook.getFilter().matches(build);
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,86 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+
+/**
+ * Called when payloads of past builds are redelivered to project's webhook, either builds of a build ID range
+ * ("fromBuild" and "toBuild") or builds delivered within a time range ("from" and "to", "yyyy-MM-dd HH:mm").
+ */
+@ExtensionMethod(LombokExtensions.class)
+@AllArgsConstructor
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksRedeliveryController extends BaseController {
+
+  private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm";
+
+  @NonNull WebControllerManager webManager;
+  @NonNull WebhooksRedelivery   redelivery;
+
+  public void register(){
+    webManager.registerController("/" + REDELIVERY_PATH, this);
+  }
+
+
+  @Nullable
+  @Override
+  @SuppressWarnings("FeatureEnvy")
+  protected ModelAndView doHandle(@NotNull HttpServletRequest  request,
+                                  @NotNull HttpServletResponse response) throws Exception {
+
+    val projectId = notEmpty(request.getParameter("projectId"), "Missing 'projectId' parameter in request");
+    val url       = notEmpty(request.getParameter("url"), "Missing 'url' parameter in request");
+    val user      = SessionUser.getUser(request);
+
+    if ((user == null) || (! user.getPermissionsGrantedForProject(projectId).contains(Permission.EDIT_PROJECT))) {
+      throw new RuntimeException("Redelivering to webhooks of project '%s' requires permission to edit it".f(projectId));
+    }
+
+    final int builds;
+    if (notEmpty(request.getParameter("fromBuild"))) {
+      val fromBuild = Long.parseLong(request.getParameter("fromBuild").trim());
+      val toBuild   = (notEmpty(request.getParameter("toBuild")) ? Long.parseLong(request.getParameter("toBuild").trim()) : fromBuild);
+      builds        = redelivery.redeliverBuilds(projectId, url, fromBuild, toBuild);
+    }
+    else if (notEmpty(request.getParameter("from"))) {
+      val from = time(request.getParameter("from"));
+      val to   = (notEmpty(request.getParameter("to")) ? time(request.getParameter("to")) : System.currentTimeMillis());
+      builds   = redelivery.redeliverPeriod(projectId, url, from, to);
+    }
+    else {
+      throw new RuntimeException("Unknown range: neither 'fromBuild' nor 'from'");
+    }
+
+    log("Redelivery of %s builds to '%s' of project '%s' is queued".f(builds, url, projectId));
+    return new ModelAndView("redirect:/project.html?projectId=%s&tab=%s&history=%s".f(projectId, PLUGIN_NAME, URLEncoder.encode(url, "UTF-8")));
+  }
+
+
+  private static long time(@NonNull String time){
+    try {
+      return new SimpleDateFormat(TIME_FORMAT).parse(time.trim()).getTime();
+    }
+    catch (ParseException e) {
+      throw new RuntimeException("Invalid time '%s', should be '%s'".f(time, TIME_FORMAT), e);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Lists build artifacts uploaded to S3 bucket specified in "s3.json":
+ * {"artifactBucket": "bucket", "awsAccessKey": "key", "awsSecretKey": "secret"}.
+ *
+ * Optional "endpoint" (with path-style access) allows to use an S3-compatible server instead of AWS.
+ * "s3.json" is read when {@link WebhooksConfigWatcher} notices it changed and its client replaces the previous one,
+ * builds only read a volatile field. The previous client is shut down once listings started with it are past
+ * their "payload.stageTimeout" deadline. Bucket's existence and region are cached for "s3.bucketTtl" ms.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksS3 {
+
+  private static final S3 NONE = new S3(null, null, null, null);
+
+  File                     settingsFile;
+  long                     bucketTtl;
+  long                     stageTimeout;
+  // Shuts replaced clients down
+  ScheduledExecutorService retirements;
+  @NonFinal volatile S3    s3    = NONE;
+  // "s3.json" modification time and length when it was last read
+  @NonFinal String         stamp = "";
+
+
+  /**
+   * Client created for "s3.json", with its buckets' regions (absent if bucket doesn't exist).
+   */
+  @Value
+  private static class S3 {
+    String                                   bucket;
+    String                                   endpoint;
+    AmazonS3Client                           client;
+    LoadingCache<String, Optional<String>>   regions;
+  }
+
+
+  public WebhooksS3(@NonNull ServerPaths serverPaths) {
+    settingsFile = new File(serverPaths.getConfigDir(), S3_SETTINGS_FILE);
+    bucketTtl    = TeamCityProperties.getInteger(S3_BUCKET_TTL, S3_BUCKET_TTL_DEFAULT);
+    stageTimeout = TeamCityProperties.getInteger(STAGE_TIMEOUT, STAGE_TIMEOUT_DEFAULT);
+    retirements  = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                              setNameFormat(PLUGIN_TITLE + " S3").
+                                                              setDaemon(true).
+                                                              build());
+    reloadIfChanged();
+  }
+
+
+  /**
+   * Retrieves URLs of objects stored under the prefix specified, keyed by object's name:
+   * {'artifact.jar' => 'https://s3-artifact/url'}
+   */
+  @SuppressWarnings("FeatureEnvy")
+  Map<String, String> artifacts(@NonNull String prefix){
+    val result = new LinkedHashMap<String, String>();
+    val s3     = this.s3;
+
+    if (isEmpty(s3.getBucket())) {
+      return result;
+    }
+
+    try {
+      val region = s3.getRegions().getUnchecked(s3.getBucket());
+      if (! region.isPresent()) {
+        return result;
+      }
+
+      // Listings are paginated, processing them page by page
+      val urlPrefix = urlPrefix(s3, region.get());
+      ObjectListing listing = s3.getClient().listObjects(s3.getBucket(), prefix);
+      while (true) {
+        for (val summary : listing.getObjectSummaries()){
+          val artifactKey = summary.getKey();
+          if (isEmpty(artifactKey) || artifactKey.endsWith("/build.json")) { continue; }
+
+          final String artifactName = artifactKey.split("/").last();
+          if (isEmpty(artifactName)) { continue; }
+
+          result.put(artifactName, WebhooksUrls.append(urlPrefix, artifactKey));
+        }
+
+        if (! listing.isTruncated()) { break; }
+        listing = s3.getClient().listNextBatchOfObjects(listing);
+      }
+    }
+    catch (Throwable t) {
+      error("Failed to list objects in S3 bucket '%s'".f(s3.getBucket()), t);
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Re-reads "s3.json" if it was changed since it was last read, replacing the client. The previous one is shut down
+   * after a stage timeout, listings may still be paginating with it.
+   *
+   * @return true if "s3.json" was re-read
+   */
+  synchronized boolean reloadIfChanged(){
+    val changed = stamp(settingsFile);
+    if (changed.equals(stamp)) { return false; }
+
+    // Not logged when read on startup
+    if (notEmpty(stamp)) { log("'%s' was changed on disk, reloading it".f(path(settingsFile))); }
+    stamp = changed;
+
+    final S3 previous = s3;
+    s3 = (settingsFile.isFile() ? createS3() : NONE);
+    if (previous.getClient() != null) {
+      retirements.schedule(new Runnable() {
+        @Override
+        public void run() { shutdown(previous); }
+      }, stageTimeout, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+
+  private S3 createS3(){
+    try {
+      val s3Settings   = readJsonFile(settingsFile);
+      val bucketName   = ((String) s3Settings.get("artifactBucket"));
+      val awsAccessKey = ((String) s3Settings.get("awsAccessKey"));
+      val awsSecretKey = ((String) s3Settings.get("awsSecretKey"));
+      val endpoint     = ((String) s3Settings.get("endpoint"));
+
+      if (isEmpty(bucketName)) {
+        return NONE;
+      }
+
+      final AmazonS3Client client = isEmpty(awsAccessKey, awsSecretKey) ?
+        new AmazonS3Client() :
+        new AmazonS3Client(new BasicAWSCredentials(awsAccessKey, awsSecretKey));
+
+      if (notEmpty(endpoint)) {
+        client.setEndpoint(endpoint);
+        client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+      }
+
+      val regions = CacheBuilder.newBuilder().
+                                 expireAfterWrite(bucketTtl, TimeUnit.MILLISECONDS).
+                                 build(new CacheLoader<String, Optional<String>>() {
+                                   @Override
+                                   public Optional<String> load(@NonNull String bucket) {
+                                     return client.doesBucketExist(bucket) ?
+                                       Optional.of(client.getBucketLocation(bucket)) :
+                                       Optional.<String>absent();
+                                   }
+                                 });
+
+      return new S3(bucketName, endpoint, client, regions);
+    }
+    catch (Throwable t) {
+      error("Failed to read S3 settings from '%s'".f(path(settingsFile)), t);
+      return NONE;
+    }
+  }
+
+
+  /**
+   * Builds bucket's URL prefix, computed once per listing, objects' keys are appended to it, e.g.
+   * https://s3-eu-west-1.amazonaws.com/evgenyg-bakery/Echo%3A%3ABuild/45/echo-service-0.0.1-SNAPSHOT.jar
+   */
+  private static String urlPrefix(@NonNull S3 s3, @NonNull String region){
+    return notEmpty(s3.getEndpoint()) ?
+      WebhooksUrls.append(s3.getEndpoint().replaceAll("/+$", ""), "/", s3.getBucket(), "/") :
+      WebhooksUrls.append("https://s3-", region, ".amazonaws.com/", s3.getBucket(), "/");
+  }
+
+
+  public void close(){
+    // Clients waiting to be shut down are shut down right away
+    for (val retirement : retirements.shutdownNow()){
+      retirement.run();
+    }
+    shutdown(s3);
+  }
+
+
+  private static void shutdown(@NonNull S3 s3){
+    if (s3.getClient() != null) {
+      s3.getClient().shutdown();
+    }
+  }
+}
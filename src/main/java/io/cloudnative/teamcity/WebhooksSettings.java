@@ -2,82 +2,637 @@ package io.cloudnative.teamcity;
 
 import static io.cloudnative.teamcity.WebhooksConstants.*;
 import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import lombok.AccessLevel;
 import lombok.NonNull;
-import lombok.SneakyThrows;
+import lombok.Value;
 import lombok.experimental.ExtensionMethod;
 import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
 import lombok.val;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 
+/**
+ * Project webhooks (URLs and their {@link WebhookOptions}) and receiver hosts' {@link WebhookHostLimit}s, kept as an immutable snapshot: readers get it with a single volatile read
+ * and writers replace it atomically with an updated copy. Snapshot is indexed by {@link WebhookEvent}, so that events
+ * are matched to webhooks subscribed to them with map lookups.
+ *
+ * Changes are appended to "webhooks.json.log" and periodically compacted into "webhooks.json" snapshot,
+ * which is written to a temporary file first and then renamed, so that a crash never leaves it truncated.
+ *
+ * Nodes of a multi-node TeamCity share config directory: changes are written holding "webhooks.json.lock" file lock,
+ * after re-reading files changed by other nodes, so that their changes are not overwritten. Changes made outside
+ * of this instance are picked up by {@link WebhooksConfigWatcher} calling {@link #reloadIfChanged()}.
+ */
 @ExtensionMethod(LombokExtensions.class)
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebhooksSettings {
 
-  File                    settingsFile;
-  Map<String,Set<String>> urls;
+  private static final Charset UTF8          = Charset.forName("UTF-8");
+  private static final String  LOG_SUFFIX    = ".log";
+  private static final String  TEMP_SUFFIX   = ".tmp";
+  private static final String  LOCK_SUFFIX   = ".lock";
+  private static final int     COMPACT_AFTER = 100;
+  // Not a valid project external ID, so it never clashes with projects
+  private static final String  HOSTS_KEY     = "@hosts";
+
+  Gson                        gson      = new Gson();
+  File                        settingsFile;
+  File                        changesFile;
+  // Snapshot being written by compaction
+  File                        tempFile;
+  File                        lockFile;
+  AtomicReference<Snapshot>   snapshot  = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+  List<Listener>              listeners = new CopyOnWriteArrayList<Listener>();
+  @NonFinal int               changesLogged;
+  // Modification times and lengths of files when they were last read or written
+  @NonFinal String            stamps    = "";
+
+
+  /**
+   * Project webhooks, their index by event and host limits, published together.
+   */
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(ImmutableMap.<String, ImmutableMap<String, Webhook>>of(),
+                                               ImmutableMap.<String, WebhookHostLimit>of());
+
+    ImmutableMap<String, ImmutableMap<String, Webhook>>                webhooks;
+    // Event => project => webhooks subscribed to it, events no webhook is subscribed to are missing
+    ImmutableMap<WebhookEvent, ImmutableListMultimap<String, Webhook>> events;
+    // Host => its limits
+    ImmutableMap<String, WebhookHostLimit>                             hosts;
+
+    Snapshot(@NonNull ImmutableMap<String, ImmutableMap<String, Webhook>> webhooks,
+             @NonNull ImmutableMap<String, WebhookHostLimit>              hosts) {
+      val events = new EnumMap<WebhookEvent, ImmutableListMultimap.Builder<String, Webhook>>(WebhookEvent.class);
+      for (val project : webhooks.entrySet()){
+        for (val webhook : project.getValue().values()){
+          for (val event : webhook.getEvents()){
+            if (! events.containsKey(event)) { events.put(event, ImmutableListMultimap.<String, Webhook>builder()); }
+            events.get(event).put(project.getKey(), webhook);
+          }
+        }
+      }
+
+      val index = new EnumMap<WebhookEvent, ImmutableListMultimap<String, Webhook>>(WebhookEvent.class);
+      for (val entry : events.entrySet()){
+        index.put(entry.getKey(), entry.getValue().build());
+      }
+
+      this.webhooks = webhooks;
+      this.events   = Maps.immutableEnumMap(index);
+      this.hosts    = hosts;
+    }
+  }
+
+
+  /**
+   * URL added to or removed from project's webhooks, adding an existing URL replaces its options.
+   * Or, if "host" is set, host's limits set or removed.
+   */
+  @Value
+  static class Change {
+    boolean          add;
+    String           projectId;
+    String           url;
+    // Missing in changes logged before options were introduced
+    WebhookOptions   options;
+    String           host;
+    WebhookHostLimit limit;
+
+    static Change add(@NonNull String projectId, @NonNull String url, @NonNull WebhookOptions options){
+      return new Change(true, notEmpty(projectId, "Empty projectId"), notEmpty(url, "Empty URL can not be added"), options, null, null);
+    }
+
+    static Change remove(@NonNull String projectId, @NonNull String url){
+      return new Change(false, notEmpty(projectId, "Empty projectId"), notEmpty(url, "Empty URL should not be removed"), null, null, null);
+    }
+
+    static Change limit(@NonNull String host, @NonNull WebhookHostLimit limit){
+      return new Change(true, null, null, null, notEmpty(host, "Empty host").trim().toLowerCase(), limit);
+    }
+
+    static Change unlimit(@NonNull String host){
+      return new Change(false, null, null, null, notEmpty(host, "Empty host").trim().toLowerCase(), null);
+    }
+
+    boolean isHostChange(){
+      return (host != null);
+    }
+  }
+
 
   public WebhooksSettings(@NonNull ServerPaths serverPaths) {
     settingsFile = new File(serverPaths.getConfigDir(), SETTINGS_FILE);
-    urls         = restoreSettings();
+    changesFile  = new File(serverPaths.getConfigDir(), SETTINGS_FILE + LOG_SUFFIX);
+    tempFile     = new File(serverPaths.getConfigDir(), SETTINGS_FILE + TEMP_SUFFIX);
+    lockFile     = new File(serverPaths.getConfigDir(), SETTINGS_FILE + LOCK_SUFFIX);
+    restoreSettings();
+  }
+
+
+  /**
+   * Retrieves projects having webhooks.
+   */
+  @NonNull
+  Set<String> getProjectIds(){
+    return snapshot.get().webhooks.keySet();
   }
 
 
-  @SuppressWarnings("ConstantConditions")
   @NonNull
   Set<String> getUrls(@NonNull String projectId){
-    if (! urls.containsKey(notEmpty(projectId, "Empty projectId"))) {
-      urls.put(projectId, new HashSet<String>());
-    }
-    return urls.get(projectId);
+    return projectWebhooks(projectId).keySet();
+  }
+
+
+  @NonNull
+  Collection<Webhook> getWebhooks(@NonNull String projectId){
+    return projectWebhooks(projectId).values();
+  }
+
+
+  /**
+   * Retrieves project's webhook with the URL specified, null if there's none.
+   */
+  Webhook getWebhook(@NonNull String projectId, @NonNull String url){
+    return projectWebhooks(projectId).get(url);
+  }
+
+
+  /**
+   * Retrieves project's webhooks subscribed to the event specified, a couple of map lookups.
+   */
+  @NonNull
+  List<Webhook> getWebhooks(@NonNull String projectId, @NonNull WebhookEvent event){
+    val projects = snapshot.get().events.get(event);
+    return (projects != null ? projects.get(projectId) : ImmutableList.<Webhook>of());
+  }
+
+
+  /**
+   * Retrieves limits of the receiver host specified, {@link WebhookHostLimit#NONE} if it has none.
+   */
+  @NonNull
+  WebhookHostLimit getHostLimit(@NonNull String host){
+    val limit = snapshot.get().hosts.get(host);
+    return (limit != null ? limit : WebhookHostLimit.NONE);
+  }
+
+
+  @NonNull
+  Map<String, WebhookHostLimit> getHostLimits(){
+    return snapshot.get().hosts;
+  }
+
+
+  /**
+   * Retrieves events at least one webhook is subscribed to.
+   */
+  @NonNull
+  Set<WebhookEvent> getEvents(){
+    return snapshot.get().events.keySet();
+  }
+
+
+  /**
+   * Notified after webhooks of projects are changed.
+   */
+  interface Listener {
+    void webhooksChanged(@NonNull Set<String> projectIds);
+  }
+
+
+  void addListener(@NonNull Listener listener){
+    listeners.add(listener);
+  }
+
+
+  @SuppressWarnings("ConstantConditions")
+  @NonNull
+  private ImmutableMap<String, Webhook> projectWebhooks(@NonNull String projectId){
+    val projectWebhooks = snapshot.get().webhooks.get(notEmpty(projectId, "Empty projectId"));
+    return (projectWebhooks != null ? projectWebhooks : ImmutableMap.<String, Webhook>of());
   }
 
 
   void addUrl(@NonNull String projectId, @NonNull String url){
-    getUrls(projectId).add(notEmpty(url, "Empty URL can not be added"));
-    saveSettings();
+    apply(ImmutableList.of(Change.add(projectId, url, WebhookOptions.DEFAULT)));
   }
 
 
   void removeUrl(@NonNull String projectId, @NonNull String url){
-    getUrls(projectId).remove(notEmpty(url, "Empty URL should not be removed"));
-    saveSettings();
+    apply(ImmutableList.of(Change.remove(projectId, url)));
   }
 
 
-  @SuppressWarnings("unchecked")
-  private Map<String,Set<String>> restoreSettings(){
+  /**
+   * Applies changes specified, publishing them in a single snapshot and persisting them with a single write.
+   */
+  synchronized void apply(@NonNull List<Change> changes){
+    val lock = lock();
+    try {
+      // Changes of other nodes are read first, so that they're not overwritten by compaction
+      reloadChanged();
+
+      val applied = update(changes);
+      if (applied.isEmpty()) { return; }
 
-    @SuppressWarnings({"TypeMayBeWeakened", "CollectionDeclaredAsConcreteClass"})
-    val result = new HashMap<String, Set<String>>();
+      val projectIds = new HashSet<String>();
+      for (val change : applied){
+        if (! change.isHostChange()) { projectIds.add(change.getProjectId()); }
+      }
+      if (! projectIds.isEmpty()) { notifyListeners(projectIds); }
 
-    if (settingsFile.isFile()) {
       try {
-        Map<String, List<String>> map = (Map<String, List<String>>) readJsonFile(settingsFile);
-        for (String url : map.keySet()){
-          result.put(url, Sets.newHashSet(map.get(url)));
+        appendChanges(applied);
+        if (changesLogged >= COMPACT_AFTER) { compact(); }
+      }
+      catch (IOException e) {
+        error("Failed to save settings to '%s'".f(path(changesFile)), e);
+      }
+      stamps = stamps();
+    }
+    finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Re-reads settings if their files were changed since they were last read or written, by another node
+   * or by hand, and notifies listeners of projects whose webhooks were changed. Costs two file stats otherwise.
+   *
+   * @return true if settings were re-read
+   */
+  synchronized boolean reloadIfChanged(){
+    if (stamps().equals(stamps)) { return false; }
+
+    val lock = lock();
+    try {
+      return reloadChanged();
+    }
+    finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Re-reads settings changed since they were last read or written, holding the lock.
+   */
+  private boolean reloadChanged(){
+    val changed = stamps();
+    if (changed.equals(stamps)) { return false; }
+    stamps = changed;
+
+    val previous = snapshot.get();
+    try {
+      val loaded  = readSnapshot();
+      val changes = (changesFile.isFile() ? readChanges() : Collections.<Change>emptyList());
+      snapshot.set(updated(loaded, changes, new ArrayList<Change>()));
+      changesLogged = changes.size();
+    }
+    catch (Throwable t) {
+      // Not retried until files are changed again
+      error("Failed to reload settings from '%s', keeping current ones".f(path(settingsFile)), t);
+      return false;
+    }
+
+    val current    = snapshot.get();
+    val projectIds = new HashSet<String>();
+    for (val projectId : Sets.union(previous.webhooks.keySet(), current.webhooks.keySet())){
+      if (! Objects.equal(previous.webhooks.get(projectId), current.webhooks.get(projectId))) { projectIds.add(projectId); }
+    }
+
+    log("Settings were changed on disk, reloaded them: %s projects changed".f(projectIds.size()));
+    if (! projectIds.isEmpty()) { notifyListeners(projectIds); }
+    return true;
+  }
+
+
+  /**
+   * Locks settings files against other nodes, null if lock failed and changes are made without it.
+   */
+  private FileLock lock(){
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(lockFile, "rw");
+      return file.getChannel().lock();
+    }
+    catch (IOException e) {
+      error("Failed to lock '%s'".f(path(lockFile)), e);
+      closeQuietly(file);
+      return null;
+    }
+  }
+
+
+  private void unlock(FileLock lock){
+    if (lock == null) { return; }
+    try {
+      // Closing the channel releases the lock
+      lock.channel().close();
+    }
+    catch (IOException e) {
+      error("Failed to unlock '%s'".f(path(lockFile)), e);
+    }
+  }
+
+
+  private static void closeQuietly(RandomAccessFile file){
+    if (file == null) { return; }
+    try {
+      file.close();
+    }
+    catch (IOException ignored) {
+      // Already failed
+    }
+  }
+
+
+  private String stamps(){
+    return stamp(settingsFile) + " " + stamp(changesFile);
+  }
+
+
+  /**
+   * Publishes a copy of current snapshot with changes applied, retrying if it was replaced meanwhile.
+   *
+   * @return changes that had an effect on the snapshot
+   */
+  private List<Change> update(@NonNull List<Change> changes){
+    while (true) {
+      val previous = snapshot.get();
+      val applied  = new ArrayList<Change>();
+      val updated  = updated(previous, changes, applied);
+      if (applied.isEmpty() || snapshot.compareAndSet(previous, updated)) {
+        return applied;
+      }
+    }
+  }
+
+
+  /**
+   * Creates a copy of snapshot with changes applied, collecting changes that had an effect on it.
+   */
+  private static Snapshot updated(@NonNull Snapshot previous, @NonNull List<Change> changes, @NonNull List<Change> applied){
+    val current = previous.webhooks;
+    val updated = new LinkedHashMap<String, Map<String, Webhook>>();
+    val hosts   = new LinkedHashMap<String, WebhookHostLimit>(previous.hosts);
+
+    for (val change : changes){
+      if (change.isHostChange()) {
+        // Limits are read by delivery whenever it schedules jobs, there are no listeners to notify
+        if (change.isAdd()) {
+          final WebhookHostLimit limit = change.getLimit().or(WebhookHostLimit.NONE);
+          if (! limit.equals(hosts.put(change.getHost(), limit))) { applied.add(change); }
+        }
+        else if (hosts.remove(change.getHost()) != null) {
+          applied.add(change);
+        }
+        continue;
+      }
+
+      if (! updated.containsKey(change.getProjectId())) {
+        val projectWebhooks = current.get(change.getProjectId());
+        updated.put(change.getProjectId(), projectWebhooks == null ? new LinkedHashMap<String, Webhook>() :
+                                                                     new LinkedHashMap<String, Webhook>(projectWebhooks));
+      }
+
+      val projectWebhooks = updated.get(change.getProjectId());
+      if (change.isAdd()) {
+        final Webhook webhook = Webhook.of(change.getProjectId(), change.getUrl(), change.getOptions().or(WebhookOptions.DEFAULT));
+        if (! webhook.equals(projectWebhooks.put(change.getUrl(), webhook))) { applied.add(change); }
+      }
+      else if (projectWebhooks.remove(change.getUrl()) != null) {
+        applied.add(change);
+      }
+    }
+
+    if (applied.isEmpty()) {
+      return previous;
+    }
+
+    val projects = ImmutableMap.<String, ImmutableMap<String, Webhook>>builder();
+    for (val entry : current.entrySet()){
+      if (! updated.containsKey(entry.getKey())) { projects.put(entry); }
+    }
+    for (val entry : updated.entrySet()){
+      if (! entry.getValue().isEmpty()) { projects.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue())); }
+    }
+
+    return new Snapshot(projects.build(), ImmutableMap.copyOf(hosts));
+  }
+
+
+  /**
+   * Loads snapshot and replays changes logged after it.
+   *
+   * Snapshot is {"projectId": {"url": {options}}, "@hosts": {"host": {limit}}}, snapshots written before options
+   * were introduced are {"projectId": ["url"]}.
+   */
+  private void restoreSettings(){
+    // Held like apply() holds it, other nodes may be writing or compacting the files meanwhile
+    val lock = lock();
+    try {
+      // Compaction fsync-s the temporary file before deleting the settings file on Windows, it is complete if it's
+      // left without the settings file. Otherwise it's a partial write, the settings file is kept.
+      if ((! settingsFile.isFile()) && tempFile.isFile()) {
+        log("Restoring settings from '%s', written by an interrupted compaction".f(path(tempFile)));
+        if (! tempFile.renameTo(settingsFile)) {
+          error("Failed to rename '%s' to '%s'".f(path(tempFile), path(settingsFile)));
+        }
+      }
+
+      if (settingsFile.isFile()) {
+        try {
+          snapshot.set(readSnapshot());
+        }
+        catch (Throwable t) {
+          // Keeping the file aside, otherwise it'd be overwritten with empty settings by the next compaction
+          val corrupted = new File(settingsFile.getPath() + ".corrupted-" + System.currentTimeMillis());
+          error("Failed to restore settings from '%s', moving it to '%s'".f(path(settingsFile), path(corrupted)), t);
+          if (! settingsFile.renameTo(corrupted)) {
+            error("Failed to move '%s' to '%s'".f(path(settingsFile), path(corrupted)));
+          }
+        }
+      }
+
+      if (changesFile.isFile()) {
+        try {
+          update(readChanges());
+          // Compacting right away, so that new changes are not appended after an incomplete line
+          compact();
+        }
+        catch (Throwable t) {
+          error("Failed to replay settings changes from '%s'".f(path(changesFile)), t);
+        }
+      }
+
+      stamps = stamps();
+    }
+    finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Reads snapshot from the settings file, an empty one if there's no file.
+   */
+  private Snapshot readSnapshot() throws IOException {
+    if (! settingsFile.isFile()) { return Snapshot.EMPTY; }
+
+    val projects = ImmutableMap.<String, ImmutableMap<String, Webhook>>builder();
+    val hosts    = ImmutableMap.<String, WebhookHostLimit>builder();
+    val json     = new JsonParser().parse(Files.toString(settingsFile, UTF8)).getAsJsonObject();
+
+    for (val project : json.entrySet()){
+      if (HOSTS_KEY.equals(project.getKey())) {
+        for (val host : project.getValue().getAsJsonObject().entrySet()){
+          hosts.put(host.getKey(), WebhookHostLimit.parse(host.getValue()));
+        }
+        continue;
+      }
+
+      val projectWebhooks = new LinkedHashMap<String, Webhook>();
+      if (project.getValue().isJsonArray()) {
+        for (val url : project.getValue().getAsJsonArray()){
+          projectWebhooks.put(url.getAsString(), Webhook.of(project.getKey(), url.getAsString(), WebhookOptions.DEFAULT));
+        }
+      }
+      else {
+        for (val webhook : project.getValue().getAsJsonObject().entrySet()){
+          projectWebhooks.put(webhook.getKey(), Webhook.of(project.getKey(), webhook.getKey(), WebhookOptions.parse(webhook.getValue())));
         }
       }
+      if (! projectWebhooks.isEmpty()) {
+        projects.put(project.getKey(), ImmutableMap.copyOf(projectWebhooks));
+      }
+    }
+
+    return new Snapshot(projects.build(), hosts.build());
+  }
+
+
+  /**
+   * Reads changes logged, ignoring the last line if it was not written completely.
+   */
+  private List<Change> readChanges() throws IOException {
+    val lines   = Files.readLines(changesFile, UTF8);
+    val changes = new ArrayList<Change>(lines.size());
+
+    for (int j = 0; j < lines.size(); j++){
+      val line = lines.get(j).trim();
+      if (line.isEmpty()) { continue; }
+      try {
+        changes.add(gson.fromJson(line, Change.class));
+      }
+      catch (RuntimeException e) {
+        if (j < (lines.size() - 1)) { throw e; }
+        error("Ignoring incomplete last line in '%s'".f(path(changesFile)));
+      }
+    }
+
+    return changes;
+  }
+
+
+  private void notifyListeners(@NonNull Set<String> projectIds){
+    for (val listener : listeners){
+      try {
+        listener.webhooksChanged(projectIds);
+      }
       catch (Throwable t) {
-        error("Failed to restore settings from '%s'".f(path(settingsFile)), t);
+        error("Settings listener failed", t);
+      }
+    }
+  }
+
+
+  private void appendChanges(@NonNull List<Change> changes) throws IOException {
+    val content = new StringBuilder();
+    for (val change : changes){
+      content.append(gson.toJson(change)).append('\n');
+    }
+
+    val out = new FileOutputStream(changesFile, true);
+    try {
+      out.write(content.toString().getBytes(UTF8));
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+
+    changesLogged += changes.size();
+  }
+
+
+  private JsonObject snapshotJson(){
+    val json = new JsonObject();
+    for (val project : snapshot.get().webhooks.entrySet()){
+      val projectJson = new JsonObject();
+      for (val webhook : project.getValue().values()){
+        projectJson.add(webhook.getUrl(), webhook.getOptions().toJsonTree());
       }
+      json.add(project.getKey(), projectJson);
     }
 
-    return result;
+    if (! snapshot.get().hosts.isEmpty()) {
+      val hostsJson = new JsonObject();
+      for (val host : snapshot.get().hosts.entrySet()){
+        hostsJson.add(host.getKey(), host.getValue().toJsonTree());
+      }
+      json.add(HOSTS_KEY, hostsJson);
+    }
+    return json;
   }
 
 
-  @SneakyThrows(IOException.class)
-  private void saveSettings(){
-    String content = new Gson().toJson(urls);
-    Files.write(content, settingsFile, Charset.forName("UTF-8"));
+  /**
+   * Writes current snapshot to a temporary file and renames it over the settings file, then truncates the changes log.
+   */
+  private void compact() throws IOException {
+    val out = new FileOutputStream(tempFile);
+    try {
+      out.write(gson.toJson(snapshotJson()).getBytes(UTF8));
+      out.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+
+    // Rename doesn't replace existing files on Windows, restoreSettings() picks the temporary file up
+    // if the server stops between deleting and renaming
+    if ((! tempFile.renameTo(settingsFile)) && ((! settingsFile.delete()) || (! tempFile.renameTo(settingsFile)))) {
+      throw new IOException("Failed to rename '%s' to '%s'".f(path(tempFile), path(settingsFile)));
+    }
+
+    if (changesFile.isFile() && (! changesFile.delete())) {
+      throw new IOException("Failed to delete '%s'".f(path(changesFile)));
+    }
+    changesLogged = 0;
   }
 }
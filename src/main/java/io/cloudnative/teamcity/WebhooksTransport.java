@@ -0,0 +1,223 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksConstants.*;
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import lombok.AccessLevel;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * POSTs payloads over pooled keep-alive connections, so that subsequent POSTs to the same receiver
+ * don't pay for TCP and TLS handshakes.
+ *
+ * The pool keeps up to "transport.maxPerRoute" connections per receiver, closing ones idle for "transport.idleTimeout" ms.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksTransport {
+
+  private static final int MAX_RESPONSE_BODY = 1024;
+
+  PoolingHttpClientConnectionManager connections;
+  CloseableHttpClient                client;
+  ScheduledExecutorService           evictor;
+  AtomicLong                         requests = new AtomicLong();
+  AtomicLong                         opened   = new AtomicLong();
+
+
+  /**
+   * Response status and body, truncated to {@link #MAX_RESPONSE_BODY} bytes.
+   */
+  @Value
+  static class Response {
+    int    status;
+    String body;
+    /** Milliseconds receiver asked to wait for with "Retry-After" header, 0 if there was none */
+    long   retryAfter;
+
+    boolean isSuccessful(){
+      return (status >= 200) && (status < 300);
+    }
+  }
+
+
+  public WebhooksTransport() {
+    connections = new PoolingHttpClientConnectionManager(new CountingConnectionFactory());
+    connections.setDefaultMaxPerRoute(Math.max(1, TeamCityProperties.getInteger(TRANSPORT_MAX_PER_ROUTE,
+                                                                                TRANSPORT_MAX_PER_ROUTE_DEFAULT)));
+    connections.setMaxTotal(Math.max(1, TeamCityProperties.getInteger(TRANSPORT_MAX_TOTAL, TRANSPORT_MAX_TOTAL_DEFAULT)));
+
+    client = HttpClients.custom().
+                         setConnectionManager(connections).
+                         setDefaultRequestConfig(RequestConfig.custom().
+                                                               setConnectTimeout(POST_TIMEOUT).
+                                                               setSocketTimeout(POST_TIMEOUT).
+                                                               setConnectionRequestTimeout(POST_TIMEOUT).
+                                                               build()).
+                         disableCookieManagement().
+                         build();
+
+    final long idleTimeout = TeamCityProperties.getInteger(TRANSPORT_IDLE_TIMEOUT, TRANSPORT_IDLE_TIMEOUT_DEFAULT);
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().
+                                                         setNameFormat(PLUGIN_TITLE + " connections evictor").
+                                                         setDaemon(true).
+                                                         build());
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        connections.closeExpiredConnections();
+        connections.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+      }
+    }, idleTimeout, idleTimeout / 2, TimeUnit.MILLISECONDS);
+  }
+
+
+  /**
+   * POSTs JSON payload to the URL specified, gzip-compressed if it reaches options' threshold
+   * and signed if signer is specified. Signature is computed over the body as sent, compressed or not.
+   */
+  Response post(@NonNull String url, @NonNull EncodedPayload payload, @NonNull WebhookOptions options, WebhookSigner signer)
+    throws IOException {
+    requests.incrementAndGet();
+    val post    = new HttpPost(url);
+    val gzipped = options.isGzipped(payload.length());
+    val bytes   = (gzipped ? payload.gzipped() : payload.bytes());
+    // Entity shares payload's bytes, they are not copied
+    post.setEntity(new ByteArrayEntity(bytes, ContentType.APPLICATION_JSON));
+    if (gzipped) { post.setHeader("Content-Encoding", "gzip"); }
+    if (signer != null) { post.setHeader(SIGNATURE_HEADER, signer.sign(bytes)); }
+
+    val response = client.execute(post);
+    try {
+      return new Response(response.getStatusLine().getStatusCode(),
+                          body(response.getEntity()),
+                          retryAfter(response.getFirstHeader("Retry-After")));
+    }
+    finally {
+      response.close();
+    }
+  }
+
+
+  /**
+   * Reads the beginning of response body, up to {@link #MAX_RESPONSE_BODY} bytes, in its charset
+   * or UTF-8. The rest is consumed without being kept, reading the entity fully returns connection to the pool.
+   */
+  private static String body(HttpEntity entity) throws IOException {
+    if (entity == null) { return ""; }
+
+    val in = entity.getContent();
+    if (in == null) { return ""; }
+
+    try {
+      val bytes       = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_RESPONSE_BODY));
+      val contentType = ContentType.get(entity);
+      val charset     = (contentType != null && contentType.getCharset() != null ? contentType.getCharset() : EncodedPayload.UTF8);
+      return new String(bytes, charset);
+    }
+    finally {
+      EntityUtils.consume(entity);
+    }
+  }
+
+
+  /**
+   * Parses "Retry-After" header, either delay in seconds or an HTTP date.
+   *
+   * @return milliseconds to wait for, 0 if header is missing or invalid
+   */
+  private static long retryAfter(Header header){
+    if ((header == null) || isEmpty(header.getValue())) { return 0; }
+
+    val value = header.getValue().trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    }
+    catch (NumberFormatException ignored) {
+      val date = DateUtils.parseDate(value);
+      return (date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : 0);
+    }
+  }
+
+
+  long getRequests(){
+    return requests.get();
+  }
+
+
+  long getConnectionsOpened(){
+    return opened.get();
+  }
+
+
+  /**
+   * Share of requests that were sent over a pooled connection rather than a new one.
+   */
+  double getHitRate(){
+    val total = requests.get();
+    return (total > 0 ? Math.max(0, 1 - ((double) opened.get() / total)) : 0);
+  }
+
+
+  int getConnectionsLeased(){
+    return connections.getTotalStats().getLeased();
+  }
+
+
+  int getConnectionsAvailable(){
+    return connections.getTotalStats().getAvailable();
+  }
+
+
+  public void close(){
+    evictor.shutdownNow();
+    try {
+      client.close();
+    }
+    catch (IOException e) {
+      error("Failed to close HTTP client", e);
+    }
+    log("Transport closed: %s requests, %s connections opened, %.1f%% pool hit rate".f(
+      requests.get(), opened.get(), getHitRate() * 100));
+  }
+
+
+  /**
+   * Counts connections opened by the pool.
+   */
+  private class CountingConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+    @Override
+    public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+      opened.incrementAndGet();
+      return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+    }
+  }
+}
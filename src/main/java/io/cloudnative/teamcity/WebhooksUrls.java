@@ -0,0 +1,132 @@
+package io.cloudnative.teamcity;
+
+import static io.cloudnative.teamcity.WebhooksUtils.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import lombok.experimental.ExtensionMethod;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import java.util.*;
+
+
+/**
+ * Builds TeamCity URLs of builds and their artifacts by appending to prefixes computed once
+ * per build configuration (and recomputed if server's root URL changes), rather than formatting them per URL.
+ */
+@ExtensionMethod(LombokExtensions.class)
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WebhooksUrls {
+
+  private static final int PREFIXES_CACHE_SIZE = 1000;
+
+  SBuildServer              buildServer;
+  Cache<String, Prefixes>   prefixes = CacheBuilder.newBuilder().maximumSize(PREFIXES_CACHE_SIZE).build();
+
+
+  /**
+   * URL prefixes of a single build configuration.
+   */
+  @AllArgsConstructor
+  @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+  private static class Prefixes {
+    String rootUrl;
+    // http://teamcity/viewType.html?buildTypeId=Echo_Build
+    String buildTypePage;
+    // http://teamcity/viewLog.html?buildTypeId=Echo_Build&buildId=
+    String buildPage;
+    // http://teamcity/repository/download/Echo_Build/
+    String download;
+  }
+
+
+  public WebhooksUrls(@NonNull SBuildServer buildServer) {
+    this.buildServer = buildServer;
+  }
+
+
+  /**
+   * "http://teamcity/viewLog.html?buildTypeId=Echo_Build&buildId=14"
+   */
+  @NonNull
+  String buildPage(@NonNull SBuild build){
+    return append(prefixes(build.getBuildType()).buildPage, String.valueOf(build.getBuildId()));
+  }
+
+
+  /**
+   * "http://teamcity/viewType.html?buildTypeId=Echo_Build"
+   */
+  @NonNull
+  String buildTypePage(@NonNull SBuildType buildType){
+    return prefixes(buildType).buildTypePage;
+  }
+
+
+  /**
+   * Builds URLs of build's artifacts archived in TeamCity, keyed by artifact's name, empty if server's URL is unknown:
+   * {'artifact.jar' => 'http://teamcity/repository/download/Echo_Build/37/artifact.jar'}
+   */
+  @NonNull
+  Map<String, String> artifacts(@NonNull SBuild build, @NonNull Collection<String> artifactNames){
+    val prefixes = prefixes(build.getBuildType());
+    if (artifactNames.isEmpty() || isEmpty(prefixes.rootUrl)) {
+      return Collections.emptyMap();
+    }
+
+    val prefix    = append(prefixes.download, build.getBuildNumber(), "/");
+    val artifacts = new TreeMap<String, String>();
+    for (String artifactName : artifactNames){
+      artifacts.put(artifactName, append(prefix, artifactName));
+    }
+    return artifacts;
+  }
+
+
+  @SuppressWarnings("ConstantConditions")
+  private Prefixes prefixes(@NonNull SBuildType buildType){
+    final String rootUrl = buildServer.getRootUrl().or("");
+    val cached           = prefixes.getIfPresent(buildType.getExternalId());
+    if ((cached != null) && cached.rootUrl.equals(rootUrl)) {
+      return cached;
+    }
+
+    val buildTypeId = buildType.getExternalId();
+    val created     = new Prefixes(rootUrl,
+                                   append(rootUrl, "/viewType.html?buildTypeId=", buildTypeId),
+                                   append(rootUrl, "/viewLog.html?buildTypeId=", buildTypeId, "&buildId="),
+                                   append(rootUrl, "/repository/download/", buildTypeId, "/"));
+    prefixes.put(buildTypeId, created);
+    return created;
+  }
+
+
+  /**
+   * Concatenates two Strings into a builder sized upfront, no varargs array is created.
+   */
+  static String append(@NonNull String s1, @NonNull String s2){
+    return new StringBuilder(s1.length() + s2.length()).append(s1).append(s2).toString();
+  }
+
+
+  /**
+   * Concatenates Strings specified into a builder sized upfront.
+   */
+  static String append(@NonNull String ... parts){
+    int length = 0;
+    for (String part : parts){
+      length += part.length();
+    }
+
+    val builder = new StringBuilder(length);
+    for (String part : parts){
+      builder.append(part);
+    }
+    return builder.toString();
+  }
+}
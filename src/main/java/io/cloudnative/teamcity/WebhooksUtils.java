@@ -9,8 +9,10 @@ import lombok.val;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 
 @ExtensionMethod(LombokExtensions.class)
@@ -51,6 +53,42 @@ final class WebhooksUtils {
   }
 
 
+  /**
+   * Retrieves file's modification time and length, telling whether it was changed since, "-" if it's missing.
+   */
+  static String stamp(@NonNull File f){
+    return (f.isFile() ? f.lastModified() + ":" + f.length() : "-");
+  }
+
+
+  /**
+   * Compiles glob specified ("*.jar,*.zip") to regex: '*' matches any characters, '?' matches any single character
+   * and ',' separates alternatives.
+   */
+  static Pattern globPattern(@NonNull String glob){
+    return globPattern(Arrays.asList(glob.split(",")));
+  }
+
+
+  /**
+   * Compiles globs specified to regex matching any of them, each glob is compiled as is: ',' is an ordinary character.
+   */
+  static Pattern globPattern(@NonNull Iterable<String> globs){
+    val regex = new StringBuilder();
+    for (String alternative : globs){
+      if (isEmpty(alternative)) { continue; }
+      if (regex.length() > 0) { regex.append('|'); }
+
+      for (String part : alternative.trim().split("(?=[*?])|(?<=[*?])")){
+        if ("*".equals(part))      { regex.append(".*"); }
+        else if ("?".equals(part)) { regex.append('.'); }
+        else if (part.length() > 0) { regex.append(Pattern.quote(part)); }
+      }
+    }
+    return Pattern.compile(regex.length() > 0 ? regex.toString() : ".*");
+  }
+
+
   /**
    * Determines if one of Strings specified is null or empty (after trim()).
    */
@@ -89,6 +127,16 @@ final class WebhooksUtils {
   }
 
 
+  /**
+   * Logs message at debug level, formatting it only if debug is enabled.
+   */
+  static void debug(@NonNull String format, Object ... args){
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("WebHooks plugin - " + String.format(format, args));
+    }
+  }
+
+
   static void error(@NonNull String message){
     error(message, null);
   }
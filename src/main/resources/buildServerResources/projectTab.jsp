@@ -11,11 +11,13 @@
     <tr>
     <c:choose>
       <c:when test="${canEdit}">
-        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><input name="url${j.count}" type="text" value="<c:out value="${url}"/>" size="64" maxlength="256"/></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><input name="url${j.count}" type="text" value="<c:out value="${url}"/>" size="64" maxlength="256"/><c:if test="${not empty breakers[url]}"> <span class="error" title="Receiver is failing, payloads are held back">${breakers[url]}</span></c:if></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><span class="grayNote"><c:out value="${options[url]}"/></span></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if>><a href="<c:url value="/project.html"><c:param name="projectId" value="${projectId}"/><c:param name="tab" value="webhooks"/><c:param name="history" value="${url}"/></c:url>">History</a></td>
         <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><button name="delete" value="url${j.count}" class="submitButton" type="submit">Delete</button></td>
       </c:when>
       <c:otherwise>
-        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span><c:out value="${url}"/></span></td>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span><c:out value="${url}"/></span> <span class="grayNote"><c:out value="${options[url]}"/></span><c:if test="${not empty breakers[url]}"> <span class="error" title="Receiver is failing, payloads are held back">${breakers[url]}</span></c:if> <a href="<c:url value="/project.html"><c:param name="projectId" value="${projectId}"/><c:param name="tab" value="webhooks"/><c:param name="history" value="${url}"/></c:url>">History</a></td>
       </c:otherwise>
     </c:choose>
     </tr>
@@ -23,6 +25,8 @@
   <c:if test="${canEdit}">
     <tr>
       <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if>><input name="new-url" type="text" value="" size="64" maxlength="256" autofocus/></td>
+      <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if>><input name="new-url-options" type="text" value="" size="32" placeholder="{&quot;batchWindow&quot;: 10000}" title="Options of webhooks added, as JSON"/></td>
+      <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if>></td>
       <td <c:if test="${urls.size() < 1}">style="border-top: none"</c:if> class="noRightBorder"><button name="add" value="new-url" class="submitButton" type="submit">Add</button></td>
     </tr>
   </c:if>
@@ -30,3 +34,90 @@
 </form>
 </c:if>
 </table>
+
+<c:if test="${not empty inherited}">
+<div><h3 class="title">Inherited from parent projects</h3></div>
+<table class="settings" style="width: auto; border: 0">
+  <c:forEach items="${inherited}" var="webhook" varStatus="j">
+    <tr>
+      <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span><c:out value="${webhook.url}"/></span> <span class="grayNote"><c:out value="${webhook.projectId}"/> <c:out value="${webhook.options}"/></span></td>
+    </tr>
+  </c:forEach>
+</table>
+</c:if>
+
+<c:if test="${not empty hosts}">
+<div><h3 class="title">Receiver hosts</h3></div>
+<table class="settings" style="width: auto; border: 0">
+  <c:forEach items="${hosts}" var="host" varStatus="j">
+    <tr>
+    <c:choose>
+      <c:when test="${canEditHosts}">
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder">
+          <form action="${action}" method="post">
+            <input name="projectId" type="hidden" value="${projectId}"/>
+            <input name="host" type="hidden" value="<c:out value="${host.key}"/>"/>
+            <span><c:out value="${host.key}"/></span>
+            <input name="limit" type="text" value="<c:out value="${host.value}"/>" size="48" placeholder="{&quot;rate&quot;: 10, &quot;weights&quot;: {&quot;${projectId}&quot;: 2}}" title="Rate limit and project weights of the host, as JSON, shared by all projects"/>
+            <button class="submitButton" type="submit">Save</button>
+          </form>
+        </td>
+      </c:when>
+      <c:otherwise>
+        <td <c:if test="${j.count == 1}">style="border-top: none"</c:if> class="noRightBorder"><span><c:out value="${host.key}"/></span> <span class="grayNote"><c:out value="${host.value}"/></span></td>
+      </c:otherwise>
+    </c:choose>
+    </tr>
+  </c:forEach>
+</table>
+</c:if>
+
+<c:if test="${not empty history}">
+<div><h3 class="title">Deliveries to <c:out value="${history.url}"/></h3></div>
+<form action="<c:url value="/project.html"/>" method="get">
+  <input name="projectId" type="hidden" value="${projectId}"/>
+  <input name="tab" type="hidden" value="webhooks"/>
+  <input name="history" type="hidden" value="<c:out value="${history.url}"/>"/>
+  <input name="historyBuild" type="text" value="${history.buildId}" size="12" placeholder="Build ID" title="Deliveries of this build only"/>
+  <button class="submitButton" type="submit">Show</button>
+  <span class="grayNote">${history.count} recorded</span>
+</form>
+<table class="settings" style="width: auto; border: 0">
+  <tr>
+    <th>Time</th><th>Build</th><th>Status</th><th>Latency, ms</th><th>Payload, bytes</th><th class="noRightBorder">Response</th>
+  </tr>
+  <c:forEach items="${history.entries}" var="entry">
+    <tr>
+      <td>${entry.time}</td>
+      <td><c:choose><c:when test="${entry.buildId > 0}"><a href="<c:url value="/viewLog.html"><c:param name="buildId" value="${entry.buildId}"/></c:url>">${entry.buildId}</a></c:when><c:otherwise>-</c:otherwise></c:choose></td>
+      <td><span <c:if test="${not entry.successful}">class="error"</c:if>>${entry.status == 0 ? 'no response' : entry.status}</span></td>
+      <td>${entry.latency}</td>
+      <td>${entry.payloadSize}</td>
+      <td class="noRightBorder"><span class="grayNote"><c:out value="${entry.response}"/></span></td>
+    </tr>
+  </c:forEach>
+</table>
+<c:if test="${canEdit}">
+<form action="${redeliveryAction}" method="post">
+  <input name="projectId" type="hidden" value="${projectId}"/>
+  <input name="url" type="hidden" value="<c:out value="${history.url}"/>"/>
+  Redeliver builds
+  <input name="fromBuild" type="text" value="" size="10" placeholder="From build ID"/> -
+  <input name="toBuild" type="text" value="" size="10" placeholder="To build ID"/>
+  or builds delivered
+  <input name="from" type="text" value="" size="16" placeholder="yyyy-MM-dd HH:mm"/> -
+  <input name="to" type="text" value="" size="16" placeholder="yyyy-MM-dd HH:mm" title="Now, if empty"/>
+  <button class="submitButton" type="submit">Redeliver</button>
+</form>
+</c:if>
+<c:if test="${history.pages > 1}">
+<div>
+  <c:forEach begin="1" end="${history.pages}" var="page">
+    <c:choose>
+      <c:when test="${page == history.page}"><strong>${page}</strong></c:when>
+      <c:otherwise><a href="<c:url value="/project.html"><c:param name="projectId" value="${projectId}"/><c:param name="tab" value="webhooks"/><c:param name="history" value="${history.url}"/><c:param name="historyBuild" value="${history.buildId}"/><c:param name="historyPage" value="${page}"/></c:url>">${page}</a></c:otherwise>
+    </c:choose>
+  </c:forEach>
+</div>
+</c:if>
+</c:if>
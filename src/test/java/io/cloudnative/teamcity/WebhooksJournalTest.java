@@ -0,0 +1,202 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+
+/**
+ * Restoring jobs after restart, including after a crash that left a torn or corrupted record at the end of a segment.
+ */
+public class WebhooksJournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ServerPaths serverPaths;
+
+
+  @Before
+  public void setUp() throws IOException {
+    serverPaths = mock(ServerPaths.class);
+    when(serverPaths.getPluginDataDirectory()).thenReturn(folder.newFolder("pluginData"));
+  }
+
+
+  @Test
+  public void restoresJobsNotDone(){
+    WebhooksJournal journal = journal();
+    WebhookJob      done    = job("http://done", 1);
+    WebhookJob      pending = job("http://pending", 2, 3);
+    journal.append(done);
+    journal.append(pending);
+    journal.done(done);
+    journal.close();
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(1, restored.size());
+    WebhookJob job = restored.get(0);
+    assertEquals(pending.getId(), job.getId());
+    assertEquals("http://pending", job.getUrl());
+    assertEquals(pending.getCreatedAt(), job.getCreatedAt());
+    assertEquals("{\"url\":\"http://pending\"}", job.getPayload().toString());
+    assertArrayEquals(new long[]{ 2, 3 }, job.getBuildIds());
+    assertEquals(0, job.getAttempt());
+  }
+
+
+  @Test
+  public void restoresAttempts(){
+    WebhooksJournal journal = journal();
+    WebhookJob      job     = job("http://retried", 1);
+    journal.append(job);
+    journal.retried(job.retry());
+    journal.retried(job.retry().retry());
+    journal.close();
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(1, restored.size());
+    assertEquals(2, restored.get(0).getAttempt());
+  }
+
+
+  @Test
+  public void keepsOrderOfRetriedJobs(){
+    WebhooksJournal journal = journal();
+    WebhookJob      first   = job("http://first", 1);
+    WebhookJob      second  = job("http://second", 2);
+    journal.append(first);
+    journal.append(second);
+    journal.retried(first.retry());
+    journal.close();
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(2, restored.size());
+    assertEquals("http://first", restored.get(0).getUrl());
+    assertEquals("http://second", restored.get(1).getUrl());
+  }
+
+
+  @Test
+  public void ignoresTornRecord() throws IOException {
+    WebhooksJournal journal = journal();
+    journal.append(job("http://complete", 1));
+    journal.append(job("http://torn", 2));
+    journal.close();
+
+    File segment = segment();
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.setLength(file.length() - 5);
+    }
+    finally {
+      file.close();
+    }
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(1, restored.size());
+    assertEquals("http://complete", restored.get(0).getUrl());
+  }
+
+
+  @Test
+  public void ignoresCorruptedRecord() throws IOException {
+    WebhooksJournal journal = journal();
+    journal.append(job("http://complete", 1));
+    journal.sync();
+    long length = segment().length();
+    journal.append(job("http://corrupted", 2));
+    journal.append(job("http://after-corrupted", 3));
+    journal.close();
+
+    // Flipping a byte of the second record's URL, its checksum no longer matches
+    RandomAccessFile file = new RandomAccessFile(segment(), "rw");
+    try {
+      long offset = length + 40;
+      file.seek(offset);
+      int b = file.read();
+      file.seek(offset);
+      file.write(b ^ 0xFF);
+    }
+    finally {
+      file.close();
+    }
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(1, restored.size());
+    assertEquals("http://complete", restored.get(0).getUrl());
+  }
+
+
+  @Test
+  public void ignoresRecordWithInvalidLength() throws IOException {
+    WebhooksJournal journal = journal();
+    journal.append(job("http://complete", 1));
+    journal.sync();
+    long length = segment().length();
+    journal.append(job("http://invalid", 2));
+    journal.close();
+
+    RandomAccessFile file = new RandomAccessFile(segment(), "rw");
+    try {
+      file.seek(length);
+      file.writeInt(Integer.MAX_VALUE);
+    }
+    finally {
+      file.close();
+    }
+
+    List<WebhookJob> restored = journal().restore();
+
+    assertEquals(1, restored.size());
+    assertEquals("http://complete", restored.get(0).getUrl());
+  }
+
+
+  @Test
+  public void deletesSegmentsOnceJobsAreDone(){
+    WebhookJob job = job("http://restored", 1);
+    WebhooksJournal journal = journal();
+    journal.append(job);
+    journal.close();
+
+    WebhooksJournal restarted = journal();
+    List<WebhookJob> restored = restarted.restore();
+    assertTrue(segment().isFile());
+
+    restarted.done(restored.get(0));
+    restarted.close();
+
+    assertFalse(segment().isFile());
+    assertTrue(journal().restore().isEmpty());
+  }
+
+
+  private WebhooksJournal journal(){
+    return new WebhooksJournal(serverPaths, new WebhooksCluster(serverPaths));
+  }
+
+
+  private File segment(){
+    return new File(new File(new File(serverPaths.getPluginDataDirectory(), WebhooksConstants.PLUGIN_NAME), "journal"),
+                    "segment-1.log");
+  }
+
+
+  private static WebhookJob job(String url, long ... buildIds){
+    return WebhookJob.of("Project", url, EncodedPayload.of(("{\"url\":\"" + url + "\"}").getBytes(EncodedPayload.UTF8)), buildIds);
+  }
+}
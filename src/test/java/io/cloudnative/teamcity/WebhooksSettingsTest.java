@@ -0,0 +1,123 @@
+package io.cloudnative.teamcity;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Restoring settings on startup: snapshot with changes logged after it replayed, including after a crash
+ * that left a torn line in the log or a compaction half-way through.
+ */
+public class WebhooksSettingsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ServerPaths serverPaths;
+  private File        config;
+
+
+  @Before
+  public void setUp() throws IOException {
+    config      = folder.newFolder("config");
+    serverPaths = mock(ServerPaths.class);
+    when(serverPaths.getConfigDir()).thenReturn(config.getPath());
+  }
+
+
+  @Test
+  public void replaysChangesLog(){
+    WebhooksSettings settings = new WebhooksSettings(serverPaths);
+    settings.apply(Arrays.asList(add("http://a"), add("http://b")));
+    settings.apply(Arrays.asList(WebhooksSettings.Change.remove("Project", "http://a"), add("http://c")));
+    assertTrue(changesFile().isFile());
+
+    WebhooksSettings restored = new WebhooksSettings(serverPaths);
+
+    assertEquals(ImmutableSet.of("http://b", "http://c"), restored.getUrls("Project"));
+    // Replayed changes are compacted into the snapshot
+    assertFalse(changesFile().isFile());
+    assertEquals(ImmutableSet.of("http://b", "http://c"), new WebhooksSettings(serverPaths).getUrls("Project"));
+  }
+
+
+  @Test
+  public void replaysChangesOnTopOfSnapshot(){
+    WebhooksSettings settings = new WebhooksSettings(serverPaths);
+    settings.apply(Arrays.asList(add("http://a")));
+    // Compacted on startup
+    new WebhooksSettings(serverPaths);
+    assertTrue(settingsFile().isFile());
+
+    new WebhooksSettings(serverPaths).apply(Arrays.asList(add("http://b")));
+
+    assertEquals(ImmutableSet.of("http://a", "http://b"), new WebhooksSettings(serverPaths).getUrls("Project"));
+  }
+
+
+  @Test
+  public void ignoresTornLastLine() throws IOException {
+    WebhooksSettings settings = new WebhooksSettings(serverPaths);
+    settings.apply(Arrays.asList(add("http://a"), add("http://b")));
+    Files.append("{\"projectId\":\"Project\",\"url\":\"http://", changesFile(), EncodedPayload.UTF8);
+
+    WebhooksSettings restored = new WebhooksSettings(serverPaths);
+
+    assertEquals(ImmutableSet.of("http://a", "http://b"), restored.getUrls("Project"));
+    // Compaction dropped the torn line, new changes are not appended after it
+    restored.apply(Arrays.asList(add("http://c")));
+    assertEquals(ImmutableSet.of("http://a", "http://b", "http://c"), new WebhooksSettings(serverPaths).getUrls("Project"));
+  }
+
+
+  @Test
+  public void restoresFromCompactionTempFile(){
+    WebhooksSettings settings = new WebhooksSettings(serverPaths);
+    settings.apply(Arrays.asList(add("http://a")));
+    new WebhooksSettings(serverPaths);
+
+    // Server stopped after compaction deleted the settings file, before it renamed the temporary file over it
+    assertTrue(settingsFile().renameTo(new File(config, WebhooksConstants.SETTINGS_FILE + ".tmp")));
+
+    assertEquals(ImmutableSet.of("http://a"), new WebhooksSettings(serverPaths).getUrls("Project"));
+    assertTrue(settingsFile().isFile());
+  }
+
+
+  @Test
+  public void keepsSettingsFileOverPartialTempFile() throws IOException {
+    WebhooksSettings settings = new WebhooksSettings(serverPaths);
+    settings.apply(Arrays.asList(add("http://a")));
+    new WebhooksSettings(serverPaths);
+
+    // Server stopped while compaction was writing the temporary file
+    Files.write("{\"Project\":{\"http://partial", new File(config, WebhooksConstants.SETTINGS_FILE + ".tmp"), EncodedPayload.UTF8);
+
+    assertEquals(ImmutableSet.of("http://a"), new WebhooksSettings(serverPaths).getUrls("Project"));
+  }
+
+
+  private File settingsFile(){
+    return new File(config, WebhooksConstants.SETTINGS_FILE);
+  }
+
+
+  private File changesFile(){
+    return new File(config, WebhooksConstants.SETTINGS_FILE + ".log");
+  }
+
+
+  private static WebhooksSettings.Change add(String url){
+    return WebhooksSettings.Change.add("Project", url, WebhookOptions.DEFAULT);
+  }
+}